@@ -0,0 +1,63 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class BenchmarkData {
+    private BenchmarkData() {
+
+    }
+
+    // Always the same, so every run of a benchmark works with the same bytes and results can be compared across commits
+    private static final long SEED = 0x7E57B0CC17L;
+
+    public static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Bytes that compress about as well as a VM disk image: mostly empty blocks, some repetitive ones (like text and
+     * binaries) and some that don't compress at all (like already compressed files).
+     */
+    public static byte[] imageBytes(int size) {
+        Random random = new Random(SEED);
+        byte[] bytes = new byte[size];
+        byte[] text = "server.properties=level-seed:0\nspawn-protection=16\n".getBytes();
+
+        int blockBytes = 65536;
+        for (int block = 0; block < size; block += blockBytes) {
+            int end = Math.min(size, block + blockBytes);
+            int kind = random.nextInt(10);
+            if (kind < 5) continue; // Left as zeros
+
+            if (kind < 8) {
+                for (int i = block; i < end; i++) bytes[i] = text[i % text.length];
+            } else {
+                byte[] noise = new byte[end - block];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, bytes, block, noise.length);
+            }
+        }
+        return bytes;
+    }
+
+    public static Path randomFile(Path directory, String name, int size) throws IOException {
+        Path file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, randomBytes(size));
+        return file;
+    }
+
+    /**
+     * The code being benchmarked logs a lot, and printing all that would end up being most of what we measure.
+     */
+    public static void silenceLogging() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
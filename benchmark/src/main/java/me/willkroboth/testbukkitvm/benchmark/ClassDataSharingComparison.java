@@ -0,0 +1,84 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.server.ServerCreator;
+import me.willkroboth.testbukkitvm.server.ServerManager;
+import me.willkroboth.testbukkitvm.vm.LibvirtEvents;
+import me.willkroboth.testbukkitvm.vm.VMCreator;
+import org.libvirt.Connect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how much faster each server version starts with the class data sharing archive made by
+ * {@link ServerCreator}. Each run reverts the server snapshot and starts the server with the archive, then reverts
+ * again and starts it with the archive moved out of the way. Uses {@link ServerProfileComparison#measure}, so it needs
+ * the same setup.
+ * <p>
+ * {@code java -cp benchmark/target/benchmark-1.0-SNAPSHOT-benchmarks.jar me.willkroboth.testbukkitvm.benchmark.ClassDataSharingComparison <storageDirectory> <runs> <versions...>}
+ */
+public class ClassDataSharingComparison {
+    private record Comparison(List<ServerProfileComparison.Result> withArchive, List<ServerProfileComparison.Result> withoutArchive) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File storageDirectory = new File(args[0]);
+        int runs = Integer.parseInt(args[1]);
+        List<String> versions = List.of(args).subList(2, args.length);
+
+        LibvirtEvents.startEventLoop();
+        Connect connect = new Connect("qemu:///system");
+        connect.setConnectionErrorCallback((userData, error) -> {
+        });
+
+        Map<String, Comparison> results = new LinkedHashMap<>();
+        for (String version : versions) {
+            ServerManager server = new ServerCreator(new VMCreator(connect, storageDirectory), storageDirectory)
+                .createServer(version, "cds-" + version);
+
+            Comparison comparison = new Comparison(new ArrayList<>(), new ArrayList<>());
+            try {
+                for (int run = 0; run < runs; run++) {
+                    server.rerunServer();
+                    ServerProfileComparison.Result with = ServerProfileComparison.measure(server);
+                    System.out.println(version + " run " + run + " with archive: " + with);
+                    comparison.withArchive().add(with);
+
+                    // run.sh only uses the archive if it's there
+                    server.rerunServer();
+                    server.vmManager().executeCommand("mv", new String[]{"/root/server/server.jsa", "/root/server/server.jsa.off"});
+                    ServerProfileComparison.Result without = ServerProfileComparison.measure(server);
+                    System.out.println(version + " run " + run + " without archive: " + without);
+                    comparison.withoutArchive().add(without);
+                }
+            } finally {
+                server.vmManager().destroy();
+            }
+            results.put(version, comparison);
+        }
+
+        System.out.println();
+        System.out.printf("%-12s %16s %16s %16s %16s %9s%n", "Version", "Host (archive)", "Host (none)",
+            "Server (archive)", "Server (none)", "Speedup");
+        for (Map.Entry<String, Comparison> entry : results.entrySet()) {
+            Comparison comparison = entry.getValue();
+            double hostWith = average(comparison.withArchive(), true);
+            double hostWithout = average(comparison.withoutArchive(), true);
+            System.out.printf("%-12s %15.1fs %15.1fs %15.1fs %15.1fs %8.2fx%n", entry.getKey(),
+                hostWith, hostWithout,
+                average(comparison.withArchive(), false), average(comparison.withoutArchive(), false),
+                hostWithout / hostWith);
+        }
+
+        connect.close();
+    }
+
+    private static double average(List<ServerProfileComparison.Result> results, boolean host) {
+        return results.stream()
+            .mapToDouble(host ? ServerProfileComparison.Result::hostStartupSeconds : ServerProfileComparison.Result::serverStartupSeconds)
+            .average().orElse(Double.NaN);
+    }
+}
@@ -0,0 +1,194 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import com.google.gson.stream.JsonReader;
+import org.libvirt.FakeDomain;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pretends to be the QEMU guest agent, following the same JSON protocol https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html
+ * Guest paths are files inside a local directory, so {@code /root/file} is {@code <root>/root/file}.
+ * <p>
+ * Only the commands we use are supported. {@code guest-exec} doesn't actually run anything, every process finishes
+ * straight away with exit code 0 and no output.
+ */
+public class FakeGuestAgent implements FakeDomain.Agent {
+    // QEMU reads 4 KiB by default
+    private static final int DEFAULT_READ_COUNT = 4096;
+
+    private final Path root;
+
+    private final Map<Integer, FileChannel> openFiles = new HashMap<>();
+    private int nextHandle = 1000;
+    private int nextPid = 1;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(0);
+
+    public FakeGuestAgent(Path root) {
+        this.root = root;
+    }
+
+    public FakeDomain createDomain(String name) {
+        return new FakeDomain(name, this);
+    }
+
+    public Path resolve(String guestPath) {
+        return root.resolve(guestPath.startsWith("/") ? guestPath.substring(1) : guestPath);
+    }
+
+    @Override
+    public synchronized String handleCommand(String command) {
+        try (JsonReader reader = new JsonReader(new StringReader(command))) {
+            String execute = null;
+            Arguments arguments = new Arguments();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "execute" -> execute = reader.nextString();
+                    case "arguments" -> arguments.read(reader);
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (execute == null) throw new IllegalArgumentException("Command has no name: " + command);
+            return "{\"return\": " + execute(execute, arguments) + "}";
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private String execute(String name, Arguments arguments) throws IOException {
+        return switch (name) {
+            case "guest-ping" -> "{}";
+            case "guest-exec" -> "{\"pid\": " + nextPid++ + "}";
+            case "guest-exec-status" -> "{\"exitcode\": 0, \"exited\": true}";
+            case "guest-file-open" -> Integer.toString(openFile(arguments.path, arguments.mode));
+            case "guest-file-close" -> {
+                getFile(arguments.handle).close();
+                openFiles.remove(arguments.handle);
+                yield "{}";
+            }
+            case "guest-file-seek" -> {
+                FileChannel file = getFile(arguments.handle);
+                long position = switch (arguments.whence) {
+                    case "set" -> arguments.offset;
+                    case "cur" -> file.position() + arguments.offset;
+                    case "end" -> file.size() + arguments.offset;
+                    default -> throw new IllegalArgumentException("Unknown whence " + arguments.whence);
+                };
+                file.position(position);
+                yield "{\"position\": " + position + ", \"eof\": " + (position >= file.size()) + "}";
+            }
+            case "guest-file-write" -> {
+                FileChannel file = getFile(arguments.handle);
+                ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(arguments.base64));
+                int count = bytes.remaining();
+                while (bytes.hasRemaining()) {
+                    file.write(bytes);
+                }
+                yield "{\"count\": " + count + ", \"eof\": false}";
+            }
+            case "guest-file-read" -> {
+                FileChannel file = getFile(arguments.handle);
+                int count = arguments.count == -1 ? DEFAULT_READ_COUNT : arguments.count;
+                if (readBuffer.capacity() < count) readBuffer = ByteBuffer.allocate(count);
+
+                readBuffer.clear().limit(count);
+                boolean eof = false;
+                while (readBuffer.hasRemaining()) {
+                    if (file.read(readBuffer) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                readBuffer.flip();
+
+                int read = readBuffer.limit();
+                // QEMU escapes forward slashes, so we do too
+                String base64 = StandardCharsets.US_ASCII.decode(Base64.getEncoder().encode(readBuffer)).toString()
+                    .replace("/", "\\/");
+                yield "{\"count\": " + read + ", \"buf-b64\": \"" + base64 + "\", \"eof\": " + eof + "}";
+            }
+            default -> throw new UnsupportedOperationException("Fake guest agent does not support " + name);
+        };
+    }
+
+    private int openFile(String guestPath, String mode) throws IOException {
+        Path path = resolve(guestPath);
+
+        // Same as c's fopen https://en.cppreference.com/w/c/io/fopen
+        Set<OpenOption> options = switch (mode.replace("b", "")) {
+            case "r" -> Set.of(StandardOpenOption.READ);
+            case "r+" -> Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE);
+            case "w" -> Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            case "w+" -> Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            case "a" -> Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            case "a+" -> Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            default -> throw new IllegalArgumentException("Unknown file mode " + mode);
+        };
+        if (options.contains(StandardOpenOption.CREATE)) Files.createDirectories(path.getParent());
+
+        int handle = nextHandle++;
+        openFiles.put(handle, FileChannel.open(path, options));
+        return handle;
+    }
+
+    private FileChannel getFile(int handle) {
+        FileChannel file = openFiles.get(handle);
+        if (file == null) throw new IllegalArgumentException("No open file with handle " + handle);
+        return file;
+    }
+
+    /**
+     * Closes any files that were left open.
+     */
+    public synchronized void reset() throws IOException {
+        for (FileChannel file : openFiles.values()) {
+            file.close();
+        }
+        openFiles.clear();
+    }
+
+    // Every argument any supported command uses
+    private static class Arguments {
+        private int handle = -1;
+        private String path = null;
+        private String mode = "r";
+        private int count = -1;
+        private long offset = 0;
+        private String whence = "set";
+        private String base64 = null;
+
+        private void read(JsonReader reader) throws IOException {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "handle" -> handle = reader.nextInt();
+                    case "path" -> path = reader.nextString();
+                    case "mode" -> mode = reader.nextString();
+                    case "count" -> count = reader.nextInt();
+                    case "offset" -> offset = reader.nextLong();
+                    case "whence" -> whence = reader.nextString();
+                    case "buf-b64" -> base64 = reader.nextString();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+    }
+}
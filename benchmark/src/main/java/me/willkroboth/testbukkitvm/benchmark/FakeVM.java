@@ -0,0 +1,47 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.vm.VMManager;
+import org.apache.commons.io.file.PathUtils;
+import org.libvirt.FakeDomain;
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A {@link VMManager} for a domain backed by the {@link FakeGuestAgent}, with the guest's files in a temp directory.
+ */
+@State(Scope.Benchmark)
+public class FakeVM {
+    public Path hostDirectory;
+    public Path guestDirectory;
+
+    public FakeGuestAgent agent;
+    public FakeDomain domain;
+    public VMManager manager;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, LibvirtException {
+        BenchmarkData.silenceLogging();
+
+        hostDirectory = Files.createTempDirectory("testbukkitvm-host");
+        guestDirectory = Files.createTempDirectory("testbukkitvm-guest");
+
+        agent = new FakeGuestAgent(guestDirectory);
+        domain = agent.createDomain("FakeVM");
+        manager = new VMManager(domain, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        agent.reset();
+        PathUtils.deleteDirectory(hostDirectory);
+        PathUtils.deleteDirectory(guestDirectory);
+    }
+}
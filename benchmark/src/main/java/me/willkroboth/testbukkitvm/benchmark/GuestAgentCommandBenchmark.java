@@ -0,0 +1,69 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.vm.guestagent.FileOpenMode;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestAgentCommand;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
+import org.libvirt.FakeDomain;
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a command and parsing its response. The domain answers every command with the same response
+ * without looking at it, so only our side of the protocol is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class GuestAgentCommandBenchmark {
+    private FakeDomain emptyDomain;
+    private FakeDomain openDomain;
+    private FakeDomain execDomain;
+    private FakeDomain execStatusDomain;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkData.silenceLogging();
+
+        emptyDomain = new FakeDomain("Empty", command -> "{\"return\": {}}");
+        openDomain = new FakeDomain("Open", command -> "{\"return\": 1000}");
+        execDomain = new FakeDomain("Exec", command -> "{\"return\": {\"pid\": 1234}}");
+
+        String output = Base64.getEncoder().encodeToString("Some output\n".repeat(100).getBytes(StandardCharsets.UTF_8));
+        String execStatus = "{\"return\": {\"exitcode\": 0, \"out-data\": \"" + output + "\", \"exited\": true}}";
+        execStatusDomain = new FakeDomain("ExecStatus", command -> execStatus);
+    }
+
+    @Benchmark
+    public Boolean ping() throws LibvirtException {
+        return GuestAgentCommand.ping().run(emptyDomain, false);
+    }
+
+    @Benchmark
+    public Void closeFile() throws LibvirtException {
+        return GuestAgentCommand.closeFile(1000).run(emptyDomain, false);
+    }
+
+    @Benchmark
+    public Integer openFile() throws LibvirtException {
+        return GuestAgentCommand.openFile(Path.of("/root/server/server.jar"), FileOpenMode.READ).run(openDomain, false);
+    }
+
+    @Benchmark
+    public Integer executeCommand() throws LibvirtException {
+        return GuestAgentCommand.executeCommand("/root/vmFiles/resetNetworking.sh", new String[]{"--quiet"}, null, null, true)
+            .run(execDomain, false);
+    }
+
+    @Benchmark
+    public GuestExecStatus getExecutionStatus() throws LibvirtException {
+        return GuestAgentCommand.getExecutionStatus(1234).run(execStatusDomain, false);
+    }
+}
@@ -0,0 +1,134 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.ParallelZipExtractor;
+import me.willkroboth.testbukkitvm.ParallelZipWriter;
+import me.willkroboth.testbukkitvm.Resource;
+import org.apache.commons.io.file.PathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures writing resources to a zip and reading them back, like exporting and importing a VM. Each case is done
+ * the old way (one thread, with {@link ZipOutputStream} and {@link Resource#readFromZip}) and with
+ * {@link ParallelZipWriter} and {@link ParallelZipExtractor}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ResourceBenchmark {
+    // Bigger than ParallelZipWriter.PART_BYTES, so the image gets split into 2 and 4 parts
+    @Param({"134217728", "268435456"})
+    public int resourceBytes;
+
+    private Path directory;
+    private Path zip;
+    private byte[] config;
+    private byte[] image;
+    private Path imageFile;
+
+    // Written once by ParallelZipWriter, for the extraction cases
+    private Path exportedZip;
+    private Map<String, Path> destinations;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkData.silenceLogging();
+
+        directory = Files.createTempDirectory("testbukkitvm-resources");
+        zip = directory.resolve("vm.zip");
+
+        config = "<domain type='kvm'></domain>\n".repeat(100).getBytes();
+        // Random bytes don't compress, and a disk image mostly does, so the compressing threads get real work
+        image = BenchmarkData.imageBytes(resourceBytes);
+        imageFile = directory.resolve(Resource.IMAGE);
+        Files.write(imageFile, image);
+
+        exportedZip = directory.resolve("exported.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(directory)) {
+            writer.addText(Resource.CONFIG, new String(config));
+            writer.addFile(Resource.IMAGE, imageFile, true);
+            writer.writeTo(exportedZip.toFile());
+        }
+
+        Path extracted = Files.createDirectories(directory.resolve("extracted"));
+        destinations = Map.of(
+            Resource.CONFIG, extracted.resolve(Resource.CONFIG),
+            Resource.IMAGE, extracted.resolve(Resource.IMAGE)
+        );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        PathUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public long roundTrip() throws IOException {
+        Map<String, InputStream> resources = new HashMap<>();
+        resources.put(Resource.CONFIG, new ByteArrayInputStream(config));
+        resources.put(Resource.IMAGE, new ByteArrayInputStream(image));
+
+        try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+            Resource.addToZip(resources, output);
+        }
+
+        return extract(zip);
+    }
+
+    @Benchmark
+    public long parallelRoundTrip() throws IOException {
+        try (ParallelZipWriter writer = new ParallelZipWriter(directory)) {
+            writer.addText(Resource.CONFIG, new String(config));
+            writer.addFile(Resource.IMAGE, imageFile, true);
+            writer.writeTo(zip.toFile());
+        }
+
+        return parallelExtract(zip);
+    }
+
+    @Benchmark
+    public long extract() throws IOException {
+        return extract(exportedZip);
+    }
+
+    @Benchmark
+    public long parallelExtract() throws IOException {
+        return parallelExtract(exportedZip);
+    }
+
+    private long extract(Path zipPath) throws IOException {
+        long bytesWritten = 0;
+        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+            for (Map.Entry<String, InputStream> resource : Resource.readFromZip(zipFile).entrySet()) {
+                try (InputStream input = resource.getValue()) {
+                    bytesWritten += Files.copy(input, destinations.get(resource.getKey()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return bytesWritten;
+    }
+
+    private long parallelExtract(Path zipPath) throws IOException {
+        ParallelZipExtractor.extract(zipPath.toFile(), destinations);
+
+        long bytesWritten = 0;
+        for (Path destination : destinations.values()) {
+            bytesWritten += Files.size(destination);
+        }
+        return bytesWritten;
+    }
+}
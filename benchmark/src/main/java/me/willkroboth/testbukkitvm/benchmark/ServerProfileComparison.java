@@ -0,0 +1,141 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.server.ServerCreator;
+import me.willkroboth.testbukkitvm.server.ServerManager;
+import me.willkroboth.testbukkitvm.vm.LibvirtEvents;
+import me.willkroboth.testbukkitvm.vm.PerformanceProfile;
+import me.willkroboth.testbukkitvm.vm.VMCreator;
+import me.willkroboth.testbukkitvm.vm.VMManager;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
+import org.libvirt.Connect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Starts a real Minecraft server in a VM with each {@link PerformanceProfile} and reports how long it took to start
+ * and how long its ticks take. This takes minutes per run and needs the same setup as {@code Run} (libvirt, the VM
+ * storage directory and a server jar), so it isn't a JMH benchmark.
+ * <p>
+ * {@code java -cp benchmark/target/benchmark-1.0-SNAPSHOT-benchmarks.jar me.willkroboth.testbukkitvm.benchmark.ServerProfileComparison <storageDirectory> <version> [runs] [profiles...]}
+ */
+public class ServerProfileComparison {
+    private static final Map<String, PerformanceProfile> PROFILES = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("default", PerformanceProfile.DEFAULT);
+        PROFILES.put("tuned", PerformanceProfile.TUNED);
+        PROFILES.put("tuned-hugepages", PerformanceProfile.TUNED.withHugepages(true));
+        // Only works if the base VM's snapshots were taken with these settings
+        PROFILES.put("tuned-passthrough", PerformanceProfile.TUNED_PASSTHROUGH);
+    }
+
+    // Paper prints "Done (12.345s)! For help, type "help"" once it has started
+    private static final Pattern DONE = Pattern.compile("Done \\(([0-9.]+)s\\)");
+    // The mspt command prints "Server tick times (avg/min/max) from last 5s, 10s, 1m:" then the times
+    private static final Pattern TICK_TIMES = Pattern.compile("([0-9.]+)/([0-9.]+)/([0-9.]+)");
+
+    private static final long STARTUP_TIMEOUT_MILLIS = 600_000;
+    private static final long TICK_WARMUP_MILLIS = 15_000;
+
+    record Result(double hostStartupSeconds, double serverStartupSeconds, double averageTickMillis) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File storageDirectory = new File(args[0]);
+        String version = args[1];
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        List<String> profileNames = args.length > 3 ? List.of(args).subList(3, args.length) : List.of("default", "tuned");
+
+        LibvirtEvents.startEventLoop();
+        Connect connect = new Connect("qemu:///system");
+        connect.setConnectionErrorCallback((userData, error) -> {
+        });
+
+        Map<String, List<Result>> results = new LinkedHashMap<>();
+        for (String profileName : profileNames) {
+            PerformanceProfile profile = PROFILES.get(profileName);
+            if (profile == null) throw new IllegalArgumentException("Unknown profile " + profileName + ", expected one of " + PROFILES.keySet());
+
+            VMCreator vmCreator = new VMCreator(connect, storageDirectory).setPerformanceProfile(profile);
+            ServerManager server = new ServerCreator(vmCreator, storageDirectory)
+                .createServer(version, "profile-" + profileName);
+
+            List<Result> profileResults = new ArrayList<>();
+            try {
+                for (int run = 0; run < runs; run++) {
+                    server.rerunServer();
+                    Result result = measure(server);
+                    System.out.println(profileName + " run " + run + ": " + result);
+                    profileResults.add(result);
+                }
+            } finally {
+                server.vmManager().destroy();
+            }
+            results.put(profileName, profileResults);
+        }
+
+        System.out.println();
+        System.out.printf("%-16s %14s %16s %12s%n", "Profile", "Startup (host)", "Startup (server)", "Tick (ms)");
+        for (Map.Entry<String, List<Result>> entry : results.entrySet()) {
+            List<Result> profileResults = entry.getValue();
+            System.out.printf("%-16s %13.1fs %15.1fs %12.2f%n", entry.getKey(),
+                profileResults.stream().mapToDouble(Result::hostStartupSeconds).average().orElse(Double.NaN),
+                profileResults.stream().mapToDouble(Result::serverStartupSeconds).average().orElse(Double.NaN),
+                profileResults.stream().mapToDouble(Result::averageTickMillis).average().orElse(Double.NaN));
+        }
+
+        connect.close();
+    }
+
+    static Result measure(ServerManager server) throws Exception {
+        VMManager vm = server.vmManager();
+
+        // Run the server in the background, with its console reading from a pipe so we can send it commands
+        long startTime = System.nanoTime();
+        server.startServer();
+        double hostStartup = (System.nanoTime() - startTime) / 1e9;
+
+        Matcher done = waitForLog(vm, DONE, STARTUP_TIMEOUT_MILLIS);
+        double serverStartup = Double.parseDouble(done.group(1));
+
+        // Let the server settle, then ask it for its tick times
+        Thread.sleep(TICK_WARMUP_MILLIS);
+        server.sendCommand("mspt");
+        GuestExecStatus tickTimes = waitForStatus(vm, "grep -A1 'Server tick times' /root/server/server.log | tail -n 1", 10_000);
+        Matcher tick = TICK_TIMES.matcher(tickTimes.outData());
+        double averageTick = tick.find() ? Double.parseDouble(tick.group(1)) : Double.NaN;
+
+        // The next run reverts the snapshot, so there's no need to wait for the server to stop
+        server.sendCommand("stop");
+        return new Result(hostStartup, serverStartup, averageTick);
+    }
+
+    private static Matcher waitForLog(VMManager vm, Pattern pattern, long timeoutMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            GuestExecStatus log = vm.executeCommand("cat", new String[]{"/root/server/server.log"});
+            if (log.outData() != null) {
+                Matcher matcher = pattern.matcher(log.outData());
+                if (matcher.find()) return matcher;
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("Server did not print " + pattern + " within " + timeoutMillis + "ms");
+    }
+
+    private static GuestExecStatus waitForStatus(VMManager vm, String command, long timeoutMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            GuestExecStatus status = vm.executeCommand("sh", new String[]{"-c", command});
+            if (status.outData() != null && !status.outData().isBlank()) return status;
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("No output from " + command + " within " + timeoutMillis + "ms");
+    }
+}
@@ -0,0 +1,58 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.vm.VMManager;
+import org.libvirt.Connect;
+import org.libvirt.DomainSnapshot;
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures our snapshot code against libvirt's test driver https://libvirt.org/drvtest.html, which keeps everything in
+ * memory. This doesn't say much about how long QEMU takes, but it shows how much time we add on top of libvirt.
+ * <p>
+ * This needs the native libvirt library to be installed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class SnapshotBenchmark {
+    private Connect connect;
+    private VMManager manager;
+    private DomainSnapshot snapshot;
+    private int snapshots = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws LibvirtException, ParserConfigurationException, TransformerException {
+        BenchmarkData.silenceLogging();
+
+        // The default test driver comes with a running domain called "test"
+        connect = new Connect("test:///default");
+        connect.setConnectionErrorCallback((userData, error) -> {
+        });
+        manager = new VMManager(connect.domainLookupByName("test"), null);
+        snapshot = manager.createSnapshot("Benchmark", "Snapshot to restore");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws LibvirtException {
+        connect.close();
+    }
+
+    @Benchmark
+    public void restoreSnapshot() throws LibvirtException {
+        manager.restoreSnapshot(snapshot);
+    }
+
+    @Benchmark
+    public int createAndDeleteSnapshot() throws LibvirtException, ParserConfigurationException, TransformerException {
+        DomainSnapshot created = manager.createSnapshot("Benchmark" + snapshots++, "Snapshot to delete");
+        return created.delete(0);
+    }
+}
@@ -0,0 +1,166 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import me.willkroboth.testbukkitvm.vm.ExternalSnapshot;
+import me.willkroboth.testbukkitvm.vm.LibvirtEvents;
+import me.willkroboth.testbukkitvm.vm.Snapshot;
+import me.willkroboth.testbukkitvm.vm.StorageProfile;
+import me.willkroboth.testbukkitvm.vm.VMCreator;
+import me.willkroboth.testbukkitvm.vm.VMManager;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
+import org.libvirt.Connect;
+import org.libvirt.DomainSnapshot;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares {@link StorageProfile}s with a real VM. Disk throughput is measured inside the guest with {@code dd}, then
+ * internal and external snapshots are created and reverted a few times. Like {@link ServerProfileComparison}, this
+ * needs libvirt and the VM storage directory, so it isn't a JMH benchmark.
+ * <p>
+ * {@code java -cp benchmark/target/benchmark-1.0-SNAPSHOT-benchmarks.jar me.willkroboth.testbukkitvm.benchmark.StorageProfileComparison <storageDirectory> [runs] [profiles...]}
+ */
+public class StorageProfileComparison {
+    private static final Map<String, StorageProfile> PROFILES = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("default", StorageProfile.DEFAULT);
+        PROFILES.put("tuned", StorageProfile.TUNED);
+    }
+
+    private static final int TEST_FILE_MIB = 256;
+    private static final int SMALL_FILES = 1000;
+    private static final String BENCHMARK_SNAPSHOT = "StorageBenchmark";
+
+    private record Result(
+        double writeMiBPerSecond, double readMiBPerSecond, double smallFilesMillis,
+        double internalCreateMillis, double internalRevertMillis,
+        double externalCreateMillis, double externalRevertMillis
+    ) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File storageDirectory = new File(args[0]);
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        List<String> profileNames = args.length > 2 ? List.of(args).subList(2, args.length) : List.copyOf(PROFILES.keySet());
+
+        LibvirtEvents.startEventLoop();
+        Connect connect = new Connect("qemu:///system");
+        connect.setConnectionErrorCallback((userData, error) -> {
+        });
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String profileName : profileNames) {
+            StorageProfile profile = PROFILES.get(profileName);
+            if (profile == null) throw new IllegalArgumentException("Unknown profile " + profileName + ", expected one of " + PROFILES.keySet());
+
+            VMManager vm = new VMCreator(connect, storageDirectory)
+                .setStorageProfile(profile)
+                .createVM("storage-" + profileName);
+            try {
+                Result result = measure(vm, runs);
+                System.out.println(profileName + ": " + result);
+                results.put(profileName, result);
+            } finally {
+                vm.destroy();
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %12s %12s %14s %16s %16s %16s %16s%n", "Profile", "Write MiB/s", "Read MiB/s",
+            "Small files", "Internal create", "Internal revert", "External create", "External revert");
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            System.out.printf("%-10s %12.1f %12.1f %12.0fms %14.0fms %14.0fms %14.0fms %14.0fms%n", entry.getKey(),
+                result.writeMiBPerSecond(), result.readMiBPerSecond(), result.smallFilesMillis(),
+                result.internalCreateMillis(), result.internalRevertMillis(),
+                result.externalCreateMillis(), result.externalRevertMillis());
+        }
+
+        connect.close();
+    }
+
+    private static Result measure(VMManager vm, int runs) throws Exception {
+        vm.restoreSnapshot(Snapshot.BASE);
+        vm.domain().resume();
+        vm.waitForGuestAgent();
+
+        // Random data to write, made before timing anything
+        //  Zeros would be turned into unmaps by detect_zeroes (see StorageProfile.discard), so they'd never hit the disk.
+        //  It's read into the guest's page cache before each write, so reading it doesn't count against the write test.
+        run(vm, "head -c " + TEST_FILE_MIB + "M /dev/urandom > /root/storageRandom");
+
+        // Disk throughput, skipping the guest's page cache so we measure the disk and not the guest's memory
+        List<Double> writes = new ArrayList<>();
+        List<Double> reads = new ArrayList<>();
+        List<Double> smallFiles = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            // The read test drops the page cache
+            run(vm, "cat /root/storageRandom > /dev/null");
+            writes.add(TEST_FILE_MIB / timeSeconds(vm,
+                "dd if=/root/storageRandom of=/root/storageBenchmark bs=1M count=" + TEST_FILE_MIB + " oflag=direct && sync"));
+            reads.add(TEST_FILE_MIB / timeSeconds(vm,
+                "echo 3 > /proc/sys/vm/drop_caches && dd if=/root/storageBenchmark of=/dev/null bs=1M iflag=direct"));
+            // Lots of small writes, like a server saving chunks
+            smallFiles.add(1000 * timeSeconds(vm,
+                "rm -rf /root/smallFiles && mkdir /root/smallFiles && " +
+                    "for i in $(seq " + SMALL_FILES + "); do echo $i > /root/smallFiles/$i; done && sync"));
+            run(vm, "rm -rf /root/storageBenchmark /root/smallFiles");
+        }
+        run(vm, "rm /root/storageRandom");
+
+        // Snapshots
+        vm.domain().suspend();
+        List<Double> internalCreates = new ArrayList<>();
+        List<Double> internalReverts = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            long startTime = System.nanoTime();
+            DomainSnapshot snapshot = vm.createSnapshot(BENCHMARK_SNAPSHOT, "Storage benchmark");
+            internalCreates.add((System.nanoTime() - startTime) / 1e6);
+
+            startTime = System.nanoTime();
+            vm.restoreSnapshot(snapshot);
+            internalReverts.add((System.nanoTime() - startTime) / 1e6);
+
+            snapshot.delete(0);
+        }
+
+        // External snapshots can only be made once per name, and reverting them doesn't change them
+        long startTime = System.nanoTime();
+        ExternalSnapshot external = vm.createExternalSnapshot(BENCHMARK_SNAPSHOT);
+        double externalCreate = (System.nanoTime() - startTime) / 1e6;
+
+        List<Double> externalReverts = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            startTime = System.nanoTime();
+            vm.restoreSnapshot(external);
+            externalReverts.add((System.nanoTime() - startTime) / 1e6);
+        }
+
+        return new Result(
+            average(writes), average(reads), average(smallFiles),
+            average(internalCreates), average(internalReverts),
+            externalCreate, average(externalReverts)
+        );
+    }
+
+    private static double timeSeconds(VMManager vm, String command) throws Exception {
+        long startTime = System.nanoTime();
+        run(vm, command);
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    private static void run(VMManager vm, String command) throws Exception {
+        GuestExecStatus status = vm.executeCommand("sh", new String[]{"-c", command});
+        if (status.exitCode() != 0) {
+            throw new IllegalStateException("Command failed with exit code " + status.exitCode() + ": " + command + "\n" + status.errData());
+        }
+    }
+
+    private static double average(List<Double> values) {
+        return values.stream().mapToDouble(Double::doubleValue).average().orElse(Double.NaN);
+    }
+}
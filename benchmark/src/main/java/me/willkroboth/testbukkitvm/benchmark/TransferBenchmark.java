@@ -0,0 +1,63 @@
+package me.willkroboth.testbukkitvm.benchmark;
+
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole file transfers through {@link me.willkroboth.testbukkitvm.vm.VMManager}, including splitting them
+ * into chunks. The fake guest agent reads and writes real files, so its time is included, but it is the same for
+ * every commit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class TransferBenchmark {
+    // About the size of a small plugin and a server jar
+    @Param({"1048576", "52428800"})
+    public int fileBytes;
+
+    private File localFile;
+    private File localDirectory;
+    private Path remoteFile;
+    private File readDestination;
+
+    @Setup(Level.Trial)
+    public void setup(FakeVM vm) throws IOException {
+        localFile = BenchmarkData.randomFile(vm.hostDirectory, "upload/server.jar", fileBytes).toFile();
+
+        // Lots of small files, like a plugin's data folder
+        Path directory = vm.hostDirectory.resolve("uploadDirectory");
+        for (int i = 0; i < 100; i++) {
+            BenchmarkData.randomFile(directory, "config" + i + ".yml", fileBytes / 100);
+        }
+        localDirectory = directory.toFile();
+
+        remoteFile = Path.of("/root/download/server.jar");
+        BenchmarkData.randomFile(vm.guestDirectory, "root/download/server.jar", fileBytes);
+        readDestination = vm.hostDirectory.resolve("download.jar").toFile();
+    }
+
+    @Benchmark
+    public void writeFile(FakeVM vm) throws IOException, LibvirtException {
+        vm.manager.writeFile(localFile, Path.of("/root/upload/server.jar"));
+    }
+
+    @Benchmark
+    public void writeDirectory(FakeVM vm) throws IOException, LibvirtException {
+        // The fake guest agent doesn't run tar, so this measures packing and sending the archive
+        vm.manager.writeFile(localDirectory, Path.of("/root/uploadDirectory"));
+    }
+
+    @Benchmark
+    public long readFile(FakeVM vm) throws IOException, LibvirtException {
+        return vm.manager.readFile(remoteFile, readDestination);
+    }
+}
@@ -0,0 +1,87 @@
+package me.willkroboth.testbukkitvm.vm.guestagent;
+
+import me.willkroboth.testbukkitvm.benchmark.BenchmarkData;
+import org.libvirt.FakeDomain;
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Base64 cost of one file chunk in each direction. This is in the guestagent package so it can compare
+ * {@link Base64Buffer} against {@link java.util.Base64} directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ChunkEncodingBenchmark {
+    // The initial and maximum chunk sizes picked by TransferController
+    @Param({"98304", "2359296"})
+    public int chunkBytes;
+
+    private byte[] chunk;
+    private final ByteArrayOutputStream prompt = new ByteArrayOutputStream();
+
+    private String encodedChunk;
+    private byte[] decodeBuffer;
+    private FakeDomain fileReadDomain;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkData.silenceLogging();
+
+        chunk = BenchmarkData.randomBytes(chunkBytes);
+
+        // QEMU escapes forward slashes
+        encodedChunk = Base64.getEncoder().encodeToString(chunk).replace("/", "\\/");
+        decodeBuffer = new byte[chunkBytes];
+
+        String fileRead = "{\"return\": {\"count\": " + chunkBytes + ", \"buf-b64\": \"" + encodedChunk + "\", \"eof\": false}}";
+        fileReadDomain = new FakeDomain("FileRead", command -> fileRead);
+    }
+
+    // Writing
+    @Benchmark
+    public String encodeWritePrompt() throws IOException {
+        // Same as GuestFileWriter
+        prompt.reset();
+        prompt.write("{\"execute\":\"guest-file-write\",\"arguments\":{\"handle\":1000,\"buf-b64\":\"".getBytes(StandardCharsets.US_ASCII));
+        try (OutputStream encoded = Base64.getEncoder().wrap(prompt)) {
+            encoded.write(chunk);
+        }
+        prompt.write("\"}}".getBytes(StandardCharsets.US_ASCII));
+        return prompt.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public String encodeToString() {
+        // Baseline, this is how chunks were encoded before
+        return Base64.getEncoder().encodeToString(chunk);
+    }
+
+    // Reading
+    @Benchmark
+    public int decodeIntoBuffer() {
+        return Base64Buffer.decode(encodedChunk, 0, encodedChunk.length(), decodeBuffer);
+    }
+
+    @Benchmark
+    public byte[] decodeWithCopy() {
+        // Baseline, which has to unescape and copy the string before decoding it
+        return Base64.getDecoder().decode(encodedChunk.replace("\\/", "/"));
+    }
+
+    @Benchmark
+    public GuestFileRead readFileChunk() throws LibvirtException {
+        // Includes finding the return value in the response
+        return GuestAgentCommand.readFileChunk(1000, chunkBytes, decodeBuffer).run(fileReadDomain, false);
+    }
+}
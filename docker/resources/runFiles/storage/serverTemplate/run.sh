@@ -1,7 +1,14 @@
 set -e
 cd "${0%/*}"
 
+# Use the class data sharing archive made by trainCDS.sh, if there is one
+#  -Xshare:auto means the JVM just ignores the archive if it doesn't match this jar or JVM anymore
+CDS=""
+if [ -f server.jsa ]; then
+  CDS="-XX:SharedArchiveFile=server.jsa -Xshare:auto"
+fi
+
 # TODO: Paper tells me off for running the server as root, which is fair
 #  I suppose it would be good to create a user that can only access the server files to run this
 #  https://madelinemiller.dev/blog/root-minecraft-server/#how-to-prevent-it
-java -Xmx1024M -Xms1024M -jar server.jar nogui
+java -Xmx1024M -Xms1024M $CDS -jar server.jar nogui
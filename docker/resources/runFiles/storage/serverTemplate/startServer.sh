@@ -0,0 +1,11 @@
+# Start the server in the background, with its console reading from a named pipe
+#  Send commands with: echo <command> > /root/server/console
+#  The output goes to server.log
+cd "${0%/*}"
+
+rm -f console server.log
+mkfifo console
+# tail -f keeps the pipe open between commands, so the server doesn't see the end of its input
+#  Nothing in the background may keep this script's stdout or stderr open. The guest agent only says a command
+#  has exited once its output pipes are closed, so it would wait for the server to stop.
+(tail -f console 2>/dev/null | ./run.sh > server.log 2>&1 &) < /dev/null > /dev/null 2>&1
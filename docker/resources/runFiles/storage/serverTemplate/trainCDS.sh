@@ -0,0 +1,62 @@
+# Training run for the class data sharing archive used by run.sh
+#  Starts the server once with -XX:ArchiveClassesAtExit, so the classes it loads while starting are written to
+#  server.jsa when it stops. Later starts map those classes from the archive instead of loading and verifying them again.
+#  https://docs.oracle.com/en/java/javase/21/vm/class-data-sharing.html
+#  Usage: trainCDS.sh [timeout seconds] [keep-world]
+#  The timeout applies to starting and stopping the server separately
+set -e
+cd "${0%/*}"
+TIMEOUT=${1:-600}
+KEEP_WORLD=${2:-}
+
+rm -f server.jsa training.log console
+# Named pipe for the server console, held open on fd 3 so we can send the stop command
+mkfifo console
+exec 3<>console
+
+# Same options as run.sh, or the archive might not match
+java -Xmx1024M -Xms1024M -XX:ArchiveClassesAtExit=server.jsa -jar server.jar nogui < console > training.log 2>&1 &
+PID=$!
+
+# Wait for the server to finish starting
+WAITED=0
+until grep -q "Done (" training.log; do
+  if ! kill -0 $PID 2>/dev/null; then
+    echo "Server stopped during training"
+    cat training.log
+    exit 1
+  fi
+  if [ $WAITED -ge "$TIMEOUT" ]; then
+    echo "Server did not start within ${TIMEOUT}s"
+    kill $PID
+    exit 1
+  fi
+  sleep 1
+  WAITED=$((WAITED + 1))
+done
+
+# The archive is written when the server stops normally
+#  If it hangs while stopping, kill it instead of waiting forever, since nothing else would stop it
+#  The JVM is already shutting down by then and ignores a normal kill, so this needs -9
+echo stop >&3
+WAITED=0
+while kill -0 $PID 2>/dev/null; do
+  if [ $WAITED -ge "$TIMEOUT" ]; then
+    echo "Server did not stop within ${TIMEOUT}s"
+    kill -9 $PID
+    exit 1
+  fi
+  sleep 1
+  WAITED=$((WAITED + 1))
+done
+wait $PID
+exec 3>&-
+rm console
+
+# Every server should still start with a fresh world, unless we're keeping the world this made for the world cache
+#  The jars Paper downloads and patches (cache, libraries, versions) are kept, since the archive was made with them
+if [ "$KEEP_WORLD" != "keep-world" ]; then
+  rm -rf world world_nether world_the_end
+fi
+rm -rf logs training.log
+ls -l server.jsa
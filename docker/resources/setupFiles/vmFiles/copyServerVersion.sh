@@ -0,0 +1,11 @@
+# Copy a server jar from the host's serverVersions folder
+#  Usage: copyServerVersion.sh <version> <destination>
+#  The folder is only mounted while copying, since QEMU can't snapshot the VM while a 9p folder is mounted
+#  The jar is copied instead of linked for the same reason, and so the server doesn't read it through 9p
+set -e
+mkdir -p /mnt/serverVersions
+mount -t 9p -o trans=virtio,version=9p2000.L,ro serverVersions /mnt/serverVersions
+trap 'umount /mnt/serverVersions' EXIT
+
+mkdir -p "$(dirname "$2")"
+cp "/mnt/serverVersions/$1.jar" "$2"
@@ -7,4 +7,10 @@ apk add \
  libstdc++
 
 # Paper server asks for udev
-setup-devd udev
\ No newline at end of file
+setup-devd udev
+# Kernel modules for mounting the host's serverVersions folder (see copyServerVersion.sh)
+#  Loaded now so they are already in the Base snapshot
+modprobe -a 9pnet_virtio 9p
+echo 9pnet_virtio >> /etc/modules
+echo 9p >> /etc/modules
+mkdir -p /mnt/serverVersions
@@ -0,0 +1,7 @@
+# Receive a file from the host over the virtio-serial data channel
+#  The host sends exactly <size> bytes after starting this script
+#  Usage: receiveFile.sh <path> <size>
+set -e
+mkdir -p "$(dirname "$1")"
+# exec so the pid the guest agent reports is the process holding the channel open
+exec head -c "$2" /dev/virtio-ports/testbukkitvm.data > "$1"
\ No newline at end of file
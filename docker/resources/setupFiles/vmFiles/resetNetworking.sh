@@ -4,6 +4,16 @@
 modprobe -r virtio_net
 modprobe virtio_net
 
+# Clones restored from another VM's memory (see SnapshotFanOut) keep that VM's MAC address in the NIC's saved state,
+#  so the new one is passed in and set explicitly
+#  Usage: resetNetworking.sh [mac address]
+case "$1" in
+  ??:??:??:??:??:??)
+    ip link set dev eth0 down
+    ip link set dev eth0 address "$1"
+    ;;
+esac
+
 # Restart networking
 #  udhcpc will use the NIC MAC address to identify this client
 #  We needed to detect the new NIC MAC address so the dhcp
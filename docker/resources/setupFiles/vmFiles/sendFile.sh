@@ -0,0 +1,6 @@
+# Send a file to the host over the virtio-serial data channel
+#  The host reads exactly as many bytes as the file has
+#  Usage: sendFile.sh <path>
+set -e
+# exec so the pid the guest agent reports is the process holding the channel open
+exec cat "$1" > /dev/virtio-ports/testbukkitvm.data
\ No newline at end of file
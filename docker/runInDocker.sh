@@ -46,4 +46,5 @@ fi
 #  Ideally we wouldn't have to do this, but I don't understand docker networking yet.
 #  Perhaps for setup we need this to download packages to the VM,
 #  but for run we could just disable networking so it doesn't need to access virbr0.
-docker run "${EXTRA_RUN_OPTIONS[@]}" --rm --privileged --name TestBukkitVM WillKroboth/test-bukkit-vm:$RUNTYPE
+# External snapshots keep VM memory in /dev/shm, which Docker only makes 64MB by default
+docker run "${EXTRA_RUN_OPTIONS[@]}" --rm --privileged --shm-size=8g --name TestBukkitVM WillKroboth/test-bukkit-vm:$RUNTYPE
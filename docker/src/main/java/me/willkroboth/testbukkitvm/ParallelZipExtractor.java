@@ -0,0 +1,228 @@
+package me.willkroboth.testbukkitvm;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Unpacks resources from a zip written by {@link ParallelZipWriter}, using every core. Each entry (or part of a split
+ * resource) is written straight to its place in the destination file by its own thread.
+ * <ul>
+ *     <li>Compressed entries skip over blocks of zeros instead of writing them, so mostly empty disk images stay
+ *     sparse and don't take up their full size on disk.</li>
+ *     <li>Stored entries are copied straight from the zip file with {@link FileChannel#transferFrom}, so the kernel
+ *     can copy them without going through Java.</li>
+ *     <li>The CRC of every entry is checked against the zip, so a corrupted download fails now instead of giving us
+ *     a broken VM later.</li>
+ * </ul>
+ */
+public class ParallelZipExtractor {
+    private ParallelZipExtractor() {
+
+    }
+
+    // Filesystems allocate space in blocks, so a block of zeros can only be skipped if the whole block is zero
+    private static final int SPARSE_BLOCK_BYTES = 4096;
+    private static final int BUFFER_BYTES = 1048576; // 2^20, must be a multiple of SPARSE_BLOCK_BYTES
+    private static final byte[] ZEROS = new byte[SPARSE_BLOCK_BYTES];
+
+    private static final double MEBIBYTE = 1048576;
+
+    private record Part(ZipArchiveEntry entry, FileChannel destination, long position) {
+    }
+
+    /**
+     * @param destinations Where to put each resource. Resources that aren't in this map are ignored.
+     */
+    public static void extract(File zipFile, Map<String, Path> destinations) throws IOException {
+        long startTime = System.nanoTime();
+        LongAdder bytesWritten = new LongAdder();
+        LongAdder bytesSkipped = new LongAdder();
+
+        try (ZipFile zip = ZipFile.builder().setFile(zipFile).get()) {
+            // Find the entries for each resource
+            Map<String, List<ZipArchiveEntry>> resourceEntries = new HashMap<>();
+            for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+                String resource = Resource.resourceName(entry.getName());
+                if (destinations.containsKey(resource)) {
+                    resourceEntries.computeIfAbsent(resource, name -> new ArrayList<>()).add(entry);
+                }
+            }
+
+            List<FileChannel> channels = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+
+                for (Map.Entry<String, List<ZipArchiveEntry>> resource : resourceEntries.entrySet()) {
+                    List<ZipArchiveEntry> entries = resource.getValue();
+                    entries.sort(Comparator.comparingInt(entry -> Resource.partNumber(entry.getName())));
+
+                    long size = 0;
+                    for (ZipArchiveEntry entry : entries) {
+                        if (entry.getSize() == ArchiveEntry.SIZE_UNKNOWN) throw new ZipException("Unknown size for " + entry.getName());
+                        size += entry.getSize();
+                    }
+
+                    // Setting the length first makes the file one big hole, which the parts are then written into
+                    Path destination = destinations.get(resource.getKey());
+                    System.out.println("Unpacking " + resource.getKey() + " (" + String.format("%.1f", size / MEBIBYTE) + " MiB)");
+                    try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+                        file.setLength(0);
+                        file.setLength(size);
+                    }
+                    FileChannel channel = FileChannel.open(destination, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channels.add(channel);
+
+                    long position = 0;
+                    for (ZipArchiveEntry entry : entries) {
+                        Part part = new Part(entry, channel, position);
+                        tasks.add(executor.submit(() -> {
+                            extractPart(zip, zipFile.toPath(), part, bytesWritten, bytesSkipped);
+                            return null;
+                        }));
+                        position += entry.getSize();
+                    }
+                }
+
+                for (Future<?> task : tasks) {
+                    awaitTask(task);
+                }
+            } finally {
+                executor.shutdownNow();
+                for (FileChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double total = (bytesWritten.sum() + bytesSkipped.sum()) / MEBIBYTE;
+        System.out.printf("Unpacked %.1f MiB in %.1f s (%.1f MiB/s), skipped %.1f MiB of zeros%n",
+            total, seconds, total / seconds, bytesSkipped.sum() / MEBIBYTE);
+    }
+
+    private static void extractPart(ZipFile zip, Path zipPath, Part part, LongAdder bytesWritten, LongAdder bytesSkipped) throws IOException {
+        ZipArchiveEntry entry = part.entry();
+        CRC32 crc = new CRC32();
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            transferStored(zipPath, part);
+            checksumWritten(part, crc);
+            bytesWritten.add(entry.getSize());
+        } else {
+            try (InputStream input = zip.getInputStream(entry)) {
+                writeSparse(input, part, crc, bytesWritten, bytesSkipped);
+            }
+        }
+
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException("CRC mismatch for " + entry.getName() + ", the zip file may be corrupted");
+        }
+    }
+
+    private static void transferStored(Path zipPath, Part part) throws IOException {
+        long size = part.entry().getSize();
+        try (FileChannel source = FileChannel.open(zipPath)) {
+            long transferred = 0;
+            while (transferred < size) {
+                source.position(part.entry().getDataOffset() + transferred);
+                long count = part.destination().transferFrom(source, part.position() + transferred, size - transferred);
+                if (count == 0) throw new ZipException("Unexpected end of zip file in " + part.entry().getName());
+                transferred += count;
+            }
+        }
+    }
+
+    private static void checksumWritten(Part part, CRC32 crc) throws IOException {
+        // The bytes we just wrote should still be in the page cache, so this doesn't need to go back to the disk
+        long size = part.entry().getSize();
+        long checked = 0;
+        while (checked < size) {
+            long length = Math.min(Integer.MAX_VALUE, size - checked);
+            MappedByteBuffer written = part.destination().map(FileChannel.MapMode.READ_ONLY, part.position() + checked, length);
+            crc.update(written);
+            checked += length;
+        }
+    }
+
+    private static void writeSparse(InputStream input, Part part, CRC32 crc, LongAdder bytesWritten, LongAdder bytesSkipped) throws IOException {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        long position = part.position();
+
+        int read;
+        while ((read = input.readNBytes(buffer, 0, buffer.length)) > 0) {
+            crc.update(buffer, 0, read);
+
+            // Write each run of blocks that aren't all zeros, and skip over the rest
+            int runStart = -1;
+            for (int blockStart = 0; blockStart < read; blockStart += SPARSE_BLOCK_BYTES) {
+                int blockEnd = Math.min(blockStart + SPARSE_BLOCK_BYTES, read);
+                boolean zero = Arrays.equals(buffer, blockStart, blockEnd, ZEROS, 0, blockEnd - blockStart);
+
+                if (!zero && runStart == -1) {
+                    runStart = blockStart;
+                } else if (zero && runStart != -1) {
+                    write(part.destination(), buffer, runStart, blockStart, position);
+                    runStart = -1;
+                }
+                if (zero) {
+                    bytesSkipped.add(blockEnd - blockStart);
+                } else {
+                    bytesWritten.add(blockEnd - blockStart);
+                }
+            }
+            if (runStart != -1) write(part.destination(), buffer, runStart, read, position);
+
+            position += read;
+        }
+    }
+
+    private static void write(FileChannel destination, byte[] buffer, int start, int end, long bufferPosition) throws IOException {
+        ByteBuffer run = ByteBuffer.wrap(buffer, start, end - start);
+        long position = bufferPosition + start;
+        while (run.hasRemaining()) {
+            position += destination.write(run, position);
+        }
+    }
+
+    private static void awaitTask(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while unpacking zip");
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException ioException) throw ioException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package me.willkroboth.testbukkitvm;
+
+import org.apache.commons.compress.archivers.zip.DefaultBackingStoreSupplier;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file using every core, with <a href="https://commons.apache.org/proper/commons-compress/zip.html#Multi-threaded_compression">commons-compress's parallel zip creator</a>.
+ * Entries start compressing as soon as they are added, each into its own temporary file, and are then copied into
+ * the zip in the order they were added.
+ * <p>
+ * Each entry can only be compressed by one thread, so files bigger than {@link #PART_BYTES} are split into several
+ * entries named with {@link Resource#partName(String, int)}. {@link Resource#readFromZip} puts them back together.
+ * <p>
+ * The compressing threads keep running until the writer is closed, so use it in a try-with-resources block.
+ */
+public class ParallelZipWriter implements AutoCloseable {
+    public static final long PART_BYTES = 67108864; // 2^26, 64 MiB
+
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+    private static final double MEBIBYTE = 1048576;
+
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final ExecutorService compressors;
+    private final ParallelScatterZipCreator creator;
+
+    private final LongAdder bytesRead = new LongAdder();
+    private long totalBytes = 0;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * @param temporaryDirectory Where to keep entries while they are compressed. Big entries need a lot of space, so
+     *                           this should be on the same disk as the zip, rather than somewhere like {@code /tmp}.
+     */
+    public ParallelZipWriter(Path temporaryDirectory) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.compressors = Executors.newFixedThreadPool(threads);
+        this.creator = new ParallelScatterZipCreator(compressors, new DefaultBackingStoreSupplier(temporaryDirectory));
+    }
+
+    /**
+     * @param compress False to store the file without compressing it, for files that are already compressed (like
+     *                 an ISO), where compressing again would just waste time.
+     */
+    public void addFile(String name, Path file, boolean compress) throws IOException {
+        long size = Files.size(file);
+        totalBytes += size;
+
+        if (size <= PART_BYTES) {
+            addEntry(name, () -> Files.newInputStream(file), compress);
+            return;
+        }
+
+        int parts = (int) ((size + PART_BYTES - 1) / PART_BYTES);
+        for (int part = 0; part < parts; part++) {
+            long offset = part * PART_BYTES;
+            long length = Math.min(PART_BYTES, size - offset);
+            addEntry(Resource.partName(name, part), () -> openPart(file, offset, length), compress);
+        }
+    }
+
+    public void addText(String name, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        totalBytes += bytes.length;
+
+        addEntry(name, () -> new ByteArrayInputStream(bytes), true);
+    }
+
+    private void addEntry(String name, Source source, boolean compress) {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(compress ? ZipEntry.DEFLATED : ZipEntry.STORED);
+
+        creator.addArchiveEntry(entry, () -> {
+            try {
+                return new ProgressInputStream(source.open());
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        });
+    }
+
+    private static InputStream openPart(Path file, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(file);
+        channel.position(offset);
+        return new PartInputStream(Channels.newInputStream(channel), length);
+    }
+
+    public void writeTo(File zipFile) throws IOException {
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "zip-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(this::printProgress, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        try (ZipArchiveOutputStream output = new ZipArchiveOutputStream(zipFile)) {
+            creator.writeTo(output);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing " + zipFile);
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof UncheckedIOException uncheckedIOException) throw uncheckedIOException.getCause();
+            if (cause instanceof IOException ioException) throw ioException;
+            throw new IOException("Could not compress entry for " + zipFile, cause);
+        } finally {
+            progress.shutdownNow();
+        }
+
+        printProgress();
+        System.out.println("Wrote " + String.format("%.1f", Files.size(zipFile.toPath()) / MEBIBYTE) + " MiB to " + zipFile);
+        System.out.println(creator.getStatisticsMessage());
+    }
+
+    /**
+     * Stops compressing anything that hasn't been written yet. {@link #writeTo} shuts the threads down by itself, but
+     * if adding an entry fails first they would keep the JVM running.
+     */
+    @Override
+    public void close() {
+        compressors.shutdownNow();
+    }
+
+    private void printProgress() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double read = bytesRead.sum() / MEBIBYTE;
+        System.out.printf("Compressed %.1f/%.1f MiB (%.1f MiB/s)%n", read, totalBytes / MEBIBYTE, read / seconds);
+    }
+
+    // Counts bytes as they are compressed
+    private class ProgressInputStream extends FilterInputStream {
+        private ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) bytesRead.increment();
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) bytesRead.add(read);
+            return read;
+        }
+    }
+
+    // Stops after the end of the part
+    private static class PartInputStream extends FilterInputStream {
+        private long remaining;
+
+        private PartInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+
+            int read = super.read();
+            if (read != -1) remaining--;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+
+            int read = super.read(bytes, offset, (int) Math.min(length, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package me.willkroboth.testbukkitvm;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -23,6 +35,8 @@ public class Resource {
     public static final String IMAGE = "image.qcow2";
     public static final String OS = "os.iso";
 
+    private static final Pattern PART_NAME = Pattern.compile("(.+)\\.part(\\d+)");
+
 
     public static void addToZip(Map<String, InputStream> resources, ZipOutputStream outputStream) throws IOException {
         for (Map.Entry<String, InputStream> resource : resources.entrySet()) {
@@ -33,19 +47,73 @@ public class Resource {
         }
     }
 
+    /**
+     * @return The name of one part of a resource that was split up by {@link ParallelZipWriter}.
+     */
+    public static String partName(String name, int part) {
+        return String.format("%s.part%04d", name, part);
+    }
+
+    /**
+     * @return The resource a zip entry belongs to, which is the entry's name unless the resource was split up.
+     */
+    public static String resourceName(String entryName) {
+        Matcher part = PART_NAME.matcher(entryName);
+        return part.matches() ? part.group(1) : entryName;
+    }
+
+    /**
+     * @return Which part of its resource a zip entry is, or 0 if the resource wasn't split up.
+     */
+    public static int partNumber(String entryName) {
+        Matcher part = PART_NAME.matcher(entryName);
+        return part.matches() ? Integer.parseInt(part.group(2)) : 0;
+    }
+
     public static Map<String, InputStream> readFromZip(ZipFile zipFile) throws IOException {
         Map<String, InputStream> resources = new HashMap<>();
+        Map<String, List<ZipEntry>> splitResources = new HashMap<>();
 
         Enumeration<? extends ZipEntry> entries = zipFile.entries();
         while (entries.hasMoreElements()) {
             ZipEntry entry = entries.nextElement();
 
             String name = entry.getName();
+            Matcher part = PART_NAME.matcher(name);
+            if (part.matches()) {
+                // Put these back together later, once we know all the parts
+                splitResources.computeIfAbsent(part.group(1), resource -> new ArrayList<>()).add(entry);
+                continue;
+            }
+
             InputStream itemStream = zipFile.getInputStream(entry);
 
             resources.put(name, itemStream);
         }
 
+        for (Map.Entry<String, List<ZipEntry>> resource : splitResources.entrySet()) {
+            List<ZipEntry> parts = resource.getValue();
+            parts.sort(Comparator.comparingInt(entry -> partNumber(entry.getName())));
+
+            // Only open each part when we get to it
+            Iterator<ZipEntry> remainingParts = parts.iterator();
+            resources.put(resource.getKey(), new SequenceInputStream(new Enumeration<>() {
+                @Override
+                public boolean hasMoreElements() {
+                    return remainingParts.hasNext();
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    try {
+                        return zipFile.getInputStream(remainingParts.next());
+                    } catch (IOException exception) {
+                        throw new UncheckedIOException(exception);
+                    }
+                }
+            }));
+        }
+
         return resources;
     }
 
@@ -64,6 +132,31 @@ public class Resource {
         }
     }
 
+    /**
+     * Packs every file inside the given directory into a tar archive. Paths in the archive are relative to the
+     * directory, and files are copied one at a time, so the archive never needs to fit in memory.
+     */
+    public static void writeTar(File localDirectory, OutputStream outputStream) throws IOException {
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(outputStream)) {
+            // Server files can have long names and big worlds
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            writeDirectory(localDirectory, Path.of(""), (file, entryPath) -> {
+                // Only setting the basic fields, since the guest's busybox tar doesn't need the extra file attributes
+                TarArchiveEntry entry = new TarArchiveEntry(entryPath.toString());
+                entry.setSize(file.length());
+                entry.setModTime(file.lastModified());
+                // Keep scripts executable
+                if (file.canExecute()) entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE | 0111);
+
+                tar.putArchiveEntry(entry);
+                Files.copy(file.toPath(), tar);
+                tar.closeArchiveEntry();
+            });
+        }
+    }
+
     @FunctionalInterface
     public interface ThrowableBiConsumer<A, B, E extends Exception> {
         void accept(A a, B b) throws E, IOException;
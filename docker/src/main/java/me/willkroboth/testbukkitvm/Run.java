@@ -1,22 +1,44 @@
 package me.willkroboth.testbukkitvm;
 
+import me.willkroboth.testbukkitvm.chunks.ChunkStore;
+import me.willkroboth.testbukkitvm.metrics.Metrics;
 import me.willkroboth.testbukkitvm.server.ServerCreator;
 import me.willkroboth.testbukkitvm.server.ServerManager;
+import me.willkroboth.testbukkitvm.server.WorldCache;
+import me.willkroboth.testbukkitvm.server.WorldSettings;
+import me.willkroboth.testbukkitvm.vm.AsyncVMManager;
+import me.willkroboth.testbukkitvm.vm.LibvirtEvents;
 import me.willkroboth.testbukkitvm.vm.SSHConnection;
+import me.willkroboth.testbukkitvm.vm.Snapshot;
 import me.willkroboth.testbukkitvm.vm.VMCreator;
 import me.willkroboth.testbukkitvm.vm.VMManager;
+import me.willkroboth.testbukkitvm.vm.VMPool;
 import org.libvirt.Connect;
 import org.libvirt.DomainSnapshot;
 
 import java.io.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class Run {
     public static void main(String[] args) throws Exception {
         String filesPath = args[0];
         File projectDirectory = new File(filesPath);
+        // Optional, finds server jars in the chunk store (and adds new ones to it), see Setup
+        boolean useChunkStore = args.length > 1 && args[1].equals("--chunk-store");
+
+        // Receive domain events, so we can wait for VMs without polling them constantly
+        //  This must happen before connecting
+        LibvirtEvents.startEventLoop();
+
+        // Print how long guest agent commands and snapshot reverts are taking every so often
+        //  The same numbers are available live over JMX
+        Metrics.startPeriodicSummary(Duration.ofSeconds(30));
 
         // Connect to qemu
         Connect connect = new Connect("qemu:///system");
@@ -28,12 +50,39 @@ public class Run {
         // Load server information
         File storageDirectory = new File(projectDirectory, "storage");
         VMCreator vmCreator = new VMCreator(connect, storageDirectory);
-        ServerCreator serverCreator = new ServerCreator(vmCreator, storageDirectory);
-
-        // Create server
-        ServerManager serverManager = serverCreator.createServer("paper-1.21.4");
-        serverManager.rerunServer();
+        // Generate each version's world once, and unpack it into every other server for that version
+        WorldCache worldCache = new WorldCache(storageDirectory.toPath().resolve("worldCache"), 4L << 30);
+        ChunkStore versionStore = useChunkStore ? new ChunkStore(projectDirectory.toPath().resolve(ChunkStore.DEFAULT_DIRECTORY)) : null;
+        ServerCreator serverCreator = new ServerCreator(vmCreator, storageDirectory, versionStore)
+            .setWorldCache(worldCache, WorldSettings.DEFAULT);
+
+        // Create servers
+        String version = "paper-1.21.4";
+        VMPool.VMFactory serverFactory = (serverVersion, index) ->
+            serverCreator.createServer(serverVersion, serverVersion + "-" + index).vmManager();
+
+        try (VMPool pool = new VMPool(serverFactory, Snapshot.SERVER, 2, 2)) {
+            pool.addVersion(version);
+
+            // Start and stop the server a few times, so each VM gets used more than once
+            List<CompletableFuture<Double>> runs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                runs.add(pool.submit(version, lease -> {
+                    ServerManager server = new ServerManager(lease.manager());
+                    long startTime = System.nanoTime();
+                    server.startServer();
+                    double startSeconds = (System.nanoTime() - startTime) / 1e9;
+                    server.stopServer();
+                    return startSeconds;
+                }));
+            }
+            for (CompletableFuture<Double> run : runs) {
+                System.out.printf("Server started in %.1f s%n", AsyncVMManager.await(run));
+            }
+        }
 
+        Metrics.stopPeriodicSummary();
+        Metrics.printSummary();
         connect.close();
     }
 
@@ -65,9 +114,10 @@ public class Run {
 
             Map<String, InputStream> retrieve = manager.readResources(Set.of("testFile"), "root");
 
-            InputStream retrievedTestFile = retrieve.get("testFile");
-            String result = new BufferedReader(new InputStreamReader(retrievedTestFile)).lines().collect(Collectors.joining("\n"));
-            System.out.println("Read file: <" + result + ">");
+            try (InputStream retrievedTestFile = retrieve.get("testFile")) {
+                String result = new BufferedReader(new InputStreamReader(retrievedTestFile)).lines().collect(Collectors.joining("\n"));
+                System.out.println("Read file: <" + result + ">");
+            }
         }
 
         // Test ssh command and upload
@@ -1,5 +1,8 @@
 package me.willkroboth.testbukkitvm;
 
+import me.willkroboth.testbukkitvm.chunks.ChunkStore;
+import me.willkroboth.testbukkitvm.metrics.Metrics;
+import me.willkroboth.testbukkitvm.vm.LibvirtEvents;
 import me.willkroboth.testbukkitvm.vm.Snapshot;
 import me.willkroboth.testbukkitvm.vm.VMCreator;
 import me.willkroboth.testbukkitvm.vm.VMExporter;
@@ -9,7 +12,6 @@ import org.libvirt.Domain;
 
 import java.io.File;
 import java.nio.file.Path;
-import java.util.zip.ZipFile;
 
 public class Setup {
 
@@ -17,6 +19,11 @@ public class Setup {
         String vmName = args[0];
         String filesPath = args[1];
         File projectDirectory = new File(filesPath);
+        // Optional, since it reads the whole image a second time
+        boolean useChunkStore = args.length > 2 && args[2].equals("--chunk-store");
+
+        // Listen for domain events (must happen before connecting)
+        LibvirtEvents.startEventLoop();
 
         // Connect to qemu
         Connect connect = new Connect("qemu:///system");
@@ -36,6 +43,9 @@ public class Setup {
         // Allow executing scripts
         manager.executeCommand("chmod +x /root/vmFiles/installPackages.sh");
         manager.executeCommand("chmod +x /root/vmFiles/resetNetworking.sh");
+        manager.executeCommand("chmod +x /root/vmFiles/receiveFile.sh");
+        manager.executeCommand("chmod +x /root/vmFiles/sendFile.sh");
+        manager.executeCommand("chmod +x /root/vmFiles/copyServerVersion.sh");
 
         // Wait for packages to complete
         System.out.println("Installing packages...");
@@ -51,12 +61,23 @@ public class Setup {
         new VMExporter(domain)
             .exportVM(vmZip);
 
-        VMCreator.setupFromZip(
-            connect,
-            new File(projectDirectory, "storage"),
-            new ZipFile(vmZip)
-        );
+        File storageDirectory = new File(projectDirectory, "storage");
+        if (useChunkStore) {
+            // Also keep it in the chunk store, where exporting VMs again only stores what changed
+            ChunkStore chunkStore = new ChunkStore(projectDirectory.toPath().resolve(ChunkStore.DEFAULT_DIRECTORY));
+            new VMExporter(domain)
+                .exportVM(chunkStore, vmName);
+
+            // The export replaced the last one's indexes, so the old image's chunks aren't needed anymore
+            System.out.println("Deleted " + chunkStore.collectGarbage() + " unused chunks");
+
+            // Set up from the store, which is how other machines with a copy of it would do it
+            VMCreator.setupFromChunkStore(connect, storageDirectory, chunkStore, vmName);
+        } else {
+            VMCreator.setupFromZip(connect, storageDirectory, vmZip);
+        }
 
+        Metrics.printSummary();
         connect.close();
     }
 }
@@ -0,0 +1,323 @@
+package me.willkroboth.testbukkitvm.chunks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores files (artifacts) as deduplicated chunks, so storing many similar files (e.g. VM images or server jars for
+ * a bunch of versions) only takes up space for the parts that are different.
+ * <p>
+ * Each artifact is split up by a {@link Chunker}, and each chunk is compressed and saved under its SHA-256 digest in
+ * {@code chunks/}. The artifact's index in {@code indexes/} lists its chunks in order. Storing an artifact only writes
+ * the chunks that aren't already in the store.
+ * <p>
+ * {@code Setup <vm> <files> --chunk-store} exports the base VM into {@code <files>/chunks} and sets up the storage
+ * directory from there, and {@code Run <files> --chunk-store} keeps server jars in the same store (see
+ * {@link me.willkroboth.testbukkitvm.server.ServerCreator}).
+ */
+public class ChunkStore {
+    /**
+     * Where {@code Setup} and {@code Run} keep their store, inside the project files directory.
+     */
+    public static final String DEFAULT_DIRECTORY = "chunks";
+
+    private static final String CHUNKS = "chunks";
+    private static final String INDEXES = "indexes";
+    private static final String INDEX_EXTENSION = ".index";
+
+    public record Chunk(String digest, int size) {
+    }
+
+    /**
+     * @param newChunks How many of the chunks weren't in the store yet.
+     * @param newBytes  How many bytes of the artifact were in those new chunks (before compressing).
+     */
+    public record PutResult(int chunks, int newChunks, long bytes, long newBytes) {
+        @Override
+        public String toString() {
+            return String.format("%d chunks (%d new), %.1f MiB (%.1f MiB new)",
+                chunks, newChunks, bytes / 1048576.0, newBytes / 1048576.0);
+        }
+    }
+
+    private final Path chunkDirectory;
+    private final Path indexDirectory;
+
+    // Artifacts can be stored at the same time, but collecting garbage has to wait until nobody is storing anything
+    private final ReadWriteLock garbageLock = new ReentrantReadWriteLock();
+
+    public ChunkStore(Path directory) throws IOException {
+        directory = directory.toAbsolutePath().normalize();
+        this.chunkDirectory = directory.resolve(CHUNKS);
+        this.indexDirectory = directory.resolve(INDEXES);
+
+        Files.createDirectories(chunkDirectory);
+        Files.createDirectories(indexDirectory);
+    }
+
+    // Artifacts
+    public boolean contains(String artifact) {
+        return Files.exists(indexPath(artifact));
+    }
+
+    public PutResult put(String artifact, Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            return put(artifact, input);
+        }
+    }
+
+    public PutResult putText(String artifact, String text) throws IOException {
+        return put(artifact, new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public PutResult put(String artifact, InputStream input) throws IOException {
+        garbageLock.readLock().lock();
+        try {
+            return putChunks(artifact, input);
+        } finally {
+            garbageLock.readLock().unlock();
+        }
+    }
+
+    private PutResult putChunks(String artifact, InputStream input) throws IOException {
+        MessageDigest digest = sha256();
+        Chunker chunker = new Chunker(input);
+
+        List<Chunk> chunks = new ArrayList<>();
+        int newChunks = 0;
+        long bytes = 0;
+        long newBytes = 0;
+
+        byte[] data;
+        while ((data = chunker.nextChunk()) != null) {
+            Chunk chunk = new Chunk(HexFormat.of().formatHex(digest.digest(data)), data.length);
+            chunks.add(chunk);
+            bytes += data.length;
+
+            if (writeChunk(chunk, data)) {
+                newChunks++;
+                newBytes += data.length;
+            }
+        }
+
+        writeIndex(artifact, chunks);
+        return new PutResult(chunks.size(), newChunks, bytes, newBytes);
+    }
+
+    public List<Chunk> readIndex(String artifact) throws IOException {
+        Path index = indexPath(artifact);
+        if (!Files.exists(index)) throw new NoSuchFileException("Could not find artifact " + artifact + " (" + index + ")");
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (String line : Files.readAllLines(index)) {
+            if (line.isBlank()) continue;
+            String[] parts = line.split(" ");
+            chunks.add(new Chunk(parts[0], Integer.parseInt(parts[1])));
+        }
+        return chunks;
+    }
+
+    /**
+     * Reads the artifact back. Chunks are only opened once the stream gets to them.
+     */
+    public InputStream open(String artifact) throws IOException {
+        Iterator<Chunk> chunks = readIndex(artifact).iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return openChunk(chunks.next());
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the artifact to a file. Chunks that are all zeros are skipped, so disk images come back sparse.
+     */
+    public void restore(String artifact, Path destination) throws IOException {
+        List<Chunk> chunks = readIndex(artifact);
+        long size = chunks.stream().mapToLong(Chunk::size).sum();
+
+        try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+        }
+
+        try (FileChannel output = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (Chunk chunk : chunks) {
+                byte[] data = readChunk(chunk);
+                if (!isZero(data)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    long written = position;
+                    while (buffer.hasRemaining()) {
+                        written += output.write(buffer, written);
+                    }
+                }
+                position += chunk.size();
+            }
+        }
+    }
+
+    public void delete(String artifact) throws IOException {
+        // The chunks might still be used by other artifacts, see collectGarbage
+        Files.deleteIfExists(indexPath(artifact));
+    }
+
+    /**
+     * Deletes chunks that aren't used by any artifact anymore.
+     * <p>
+     * A {@link #put} writes its chunks before the index that uses them, so this waits for puts on this
+     * {@code ChunkStore} to finish. Other {@code ChunkStore}s or processes using the same directory aren't covered,
+     * so this must not run while they might be storing artifacts.
+     *
+     * @return The number of chunks deleted.
+     */
+    public int collectGarbage() throws IOException {
+        garbageLock.writeLock().lock();
+        try {
+            return deleteUnusedChunks();
+        } finally {
+            garbageLock.writeLock().unlock();
+        }
+    }
+
+    private int deleteUnusedChunks() throws IOException {
+        Set<String> used = new HashSet<>();
+        try (Stream<Path> indexes = Files.walk(indexDirectory)) {
+            for (Path index : (Iterable<Path>) indexes.filter(Files::isRegularFile)::iterator) {
+                for (String line : Files.readAllLines(index)) {
+                    if (!line.isBlank()) used.add(line.split(" ")[0]);
+                }
+            }
+        }
+
+        int deleted = 0;
+        try (Stream<Path> chunks = Files.walk(chunkDirectory)) {
+            for (Path chunk : (Iterable<Path>) chunks.filter(Files::isRegularFile)::iterator) {
+                if (!used.contains(chunk.getFileName().toString())) {
+                    Files.delete(chunk);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // Chunks
+    private Path chunkPath(String digest) {
+        // Split up by the first byte, so no directory ends up with too many files
+        return chunkDirectory.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private boolean writeChunk(Chunk chunk, byte[] data) throws IOException {
+        Path path = chunkPath(chunk.digest());
+        if (Files.exists(path)) return false;
+
+        // Write to a temporary file first, so a crash can't leave half a chunk under the real name
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), chunk.digest(), ".tmp");
+        try (OutputStream output = new DeflaterOutputStream(Files.newOutputStream(temp))) {
+            output.write(data);
+        }
+        return moveIntoPlace(temp, path);
+    }
+
+    private InputStream openChunk(Chunk chunk) throws IOException {
+        return new InflaterInputStream(Files.newInputStream(chunkPath(chunk.digest())));
+    }
+
+    private byte[] readChunk(Chunk chunk) throws IOException {
+        byte[] data;
+        try (InputStream input = openChunk(chunk)) {
+            data = input.readAllBytes();
+        }
+        if (data.length != chunk.size()) {
+            throw new IOException("Chunk " + chunk.digest() + " should have " + chunk.size() + " bytes, but has " + data.length);
+        }
+        return data;
+    }
+
+    private static boolean moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (FileAlreadyExistsException exception) {
+            // Someone else stored the same chunk at the same time, which is fine
+            Files.deleteIfExists(temp);
+            return false;
+        }
+    }
+
+    // Indexes
+    private Path indexPath(String artifact) {
+        Path index = indexDirectory.resolve(artifact + INDEX_EXTENSION).normalize();
+        if (!index.startsWith(indexDirectory)) throw new IllegalArgumentException("Invalid artifact name " + artifact);
+        return index;
+    }
+
+    private void writeIndex(String artifact, List<Chunk> chunks) throws IOException {
+        StringBuilder index = new StringBuilder();
+        for (Chunk chunk : chunks) {
+            index.append(chunk.digest()).append(' ').append(chunk.size()).append('\n');
+        }
+
+        Path path = indexPath(artifact);
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        Files.writeString(temp, index);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            // Every Java implementation is required to support SHA-256
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package me.willkroboth.testbukkitvm.chunks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks where the content says to, rather than every N bytes. Inserting or removing bytes only
+ * changes the chunks around the edit, and every chunk after it lines up with the old chunks again, so two similar
+ * files (e.g. two VM images made from the same base) end up sharing most of their chunks.
+ * <p>
+ * This uses a gear hash like FastCDC https://www.usenix.org/conference/atc16/technical-sessions/presentation/xia
+ * A boundary is placed wherever the hash of the last 64 bytes has {@link #BOUNDARY_BITS} zero bits.
+ */
+public class Chunker {
+    public static final int MIN_CHUNK_BYTES = 131072; // 2^17
+    public static final int MAX_CHUNK_BYTES = 2097152; // 2^21
+    // Average chunk is MIN_CHUNK_BYTES + 2^BOUNDARY_BITS, about 640 KiB
+    private static final int BOUNDARY_BITS = 19;
+    // Use the top bits, since bytes only affect the top bits of the hash after they have been shifted up
+    private static final long BOUNDARY_MASK = -1L << (64 - BOUNDARY_BITS);
+
+    // The table must never change, or chunks stored before won't match chunks made now
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EED_C0DE);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream input;
+    private final byte[] buffer = new byte[MAX_CHUNK_BYTES * 2];
+    private int start = 0;
+    private int end = 0;
+    private boolean finished = false;
+
+    public Chunker(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * @return The next chunk, or null if the stream has ended. The returned array is owned by the caller.
+     */
+    public byte[] nextChunk() throws IOException {
+        fill();
+        if (start == end) return null;
+
+        int length = findBoundary(buffer, start, end);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    private void fill() throws IOException {
+        if (finished || end - start >= MAX_CHUNK_BYTES) return;
+
+        // Move what's left to the front, then read until there is enough for a full chunk
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+
+        while (end < MAX_CHUNK_BYTES) {
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                finished = true;
+                return;
+            }
+            end += read;
+        }
+    }
+
+    static int findBoundary(byte[] data, int start, int end) {
+        int available = end - start;
+        if (available <= MIN_CHUNK_BYTES) return available;
+
+        int limit = Math.min(available, MAX_CHUNK_BYTES);
+        long hash = 0;
+        // Nothing before the minimum size can be a boundary, so we only need to hash the 64 bytes before it
+        for (int i = MIN_CHUNK_BYTES - 64; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xFF];
+            if (i >= MIN_CHUNK_BYTES && (hash & BOUNDARY_MASK) == 0) return i + 1;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,77 @@
+package me.willkroboth.testbukkitvm.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps {@link OperationStats} for everything we time, so we can see where a slow run spends its time. Each operation
+ * is also registered with JMX under {@code me.willkroboth.testbukkitvm:type=Operation}, so the numbers can be watched
+ * live with tools like JConsole.
+ */
+public class Metrics {
+    private Metrics() {
+
+    }
+
+    private static final String JMX_DOMAIN = "me.willkroboth.testbukkitvm";
+
+    private static final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService summaryExecutor = null;
+
+    public static OperationStats operation(String name) {
+        return operations.computeIfAbsent(name, Metrics::register);
+    }
+
+    private static OperationStats register(String name) {
+        OperationStats stats = new OperationStats(name);
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Operation,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+        } catch (JMException exception) {
+            // Not a big deal, the stats are still collected and printed in the summary
+            System.out.println("Could not register " + name + " metrics with JMX: " + exception.getMessage());
+        }
+        return stats;
+    }
+
+    public static void printSummary() {
+        if (operations.isEmpty()) return;
+
+        System.out.println("Operation summary:");
+        operations.values().stream()
+            // Operations taking the most time are probably the most interesting
+            .sorted(Comparator.comparingDouble(OperationStats::getTotalMillis).reversed())
+            .forEach(stats -> System.out.println("  " + stats.summary()));
+    }
+
+    /**
+     * Prints the summary every {@code interval} on a background thread, until {@link #stopPeriodicSummary()} is called.
+     */
+    public static synchronized void startPeriodicSummary(Duration interval) {
+        if (summaryExecutor != null) return;
+
+        summaryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = interval.toMillis();
+        summaryExecutor.scheduleAtFixedRate(Metrics::printSummary, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopPeriodicSummary() {
+        if (summaryExecutor == null) return;
+
+        summaryExecutor.shutdownNow();
+        summaryExecutor = null;
+    }
+}
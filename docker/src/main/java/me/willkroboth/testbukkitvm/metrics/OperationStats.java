@@ -0,0 +1,161 @@
+package me.willkroboth.testbukkitvm.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts calls, bytes and latency for one kind of operation, like a guest agent command or a snapshot revert.
+ * Everything here is safe to update from multiple threads.
+ */
+public class OperationStats implements OperationStatsMXBean {
+    // Bucket i holds latencies under 2^i microseconds, so the last bucket is everything over about a minute
+    private static final int BUCKETS = 27;
+
+    private final String name;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKETS);
+
+    public OperationStats(String name) {
+        this.name = name;
+    }
+
+    // Recording
+    public void record(long elapsedNanos, long sent, long received) {
+        calls.increment();
+        bytesSent.add(sent);
+        bytesReceived.add(received);
+        recordLatency(elapsedNanos);
+    }
+
+    public void recordFailure(long elapsedNanos, long sent) {
+        failures.increment();
+        record(elapsedNanos, sent, 0);
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    private void recordLatency(long elapsedNanos) {
+        totalNanos.add(elapsedNanos);
+        maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+
+        long micros = Math.max(elapsedNanos / 1000, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        latencyBuckets.incrementAndGet(bucket);
+    }
+
+    // Reading
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos.sum() / 1_000_000.0;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = calls.sum();
+        return count == 0 ? 0 : getTotalMillis() / count;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public double getMedianMillis() {
+        return percentileMillis(0.5);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return percentileMillis(0.99);
+    }
+
+    /**
+     * @return An estimate of the given percentile, using the upper bound of the bucket it falls in (or the slowest
+     * call, if that is smaller).
+     */
+    public double percentileMillis(double percentile) {
+        long[] histogram = getLatencyHistogram();
+
+        long total = 0;
+        for (long count : histogram) total += count;
+        if (total == 0) return 0;
+
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= target) return Math.min((1L << i) / 1000.0, getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = latencyBuckets.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        failures.reset();
+        retries.reset();
+        bytesSent.reset();
+        bytesReceived.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            latencyBuckets.set(i, 0);
+        }
+    }
+
+    public String summary() {
+        return String.format("%-24s %8d calls %5d failed %5d retries %12.1f ms total %9.2f ms mean %9.2f ms p50 %9.2f ms p99 %9.2f ms max %12d B sent %12d B received",
+            name, getCalls(), getFailures(), getRetries(), getTotalMillis(), getMeanMillis(),
+            getMedianMillis(), get99thPercentileMillis(), getMaxMillis(), getBytesSent(), getBytesReceived());
+    }
+}
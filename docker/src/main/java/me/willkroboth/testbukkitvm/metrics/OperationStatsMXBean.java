@@ -0,0 +1,34 @@
+package me.willkroboth.testbukkitvm.metrics;
+
+// Attributes shown for each operation in JMX tools like JConsole or VisualVM
+public interface OperationStatsMXBean {
+    String getName();
+
+    long getCalls();
+
+    long getFailures();
+
+    long getRetries();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getMedianMillis();
+
+    double get99thPercentileMillis();
+
+    /**
+     * @return The number of calls in each latency bucket. Bucket {@code i} counts calls that took less than
+     * {@code 2^i} microseconds, but at least as long as the bucket before it.
+     */
+    long[] getLatencyHistogram();
+
+    void reset();
+}
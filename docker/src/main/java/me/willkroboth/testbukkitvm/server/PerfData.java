@@ -0,0 +1,57 @@
+package me.willkroboth.testbukkitvm.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads counters from a JVM's {@code hsperfdata} file, which is what {@code jstat} reads. The guest only has a JRE, so
+ * there is no {@code jcmd} or {@code jstat} to ask the server's JVM how its JIT is doing.
+ * <p>
+ * The format is described in {@code sun.jvmstat.perfdata.monitor.v2_0.PerfDataBuffer}.
+ */
+class PerfData {
+    private static final int MAGIC = 0xcafec0c0;
+
+    // Offsets in the prologue
+    private static final int BYTE_ORDER = 4;
+    private static final int ENTRY_OFFSET = 24;
+    private static final int NUM_ENTRIES = 28;
+
+    // Offsets in each entry
+    private static final int ENTRY_LENGTH = 0;
+    private static final int NAME_OFFSET = 4;
+    private static final int VECTOR_LENGTH = 8;
+    private static final int DATA_TYPE = 12;
+    private static final int DATA_OFFSET = 16;
+
+    /**
+     * @return The value of a long counter (e.g. {@code sun.ci.totalCompiles}), or -1 if there is no such counter.
+     */
+    static long readLong(Path file, String counter) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.getInt(0) != MAGIC) throw new IOException(file + " is not a hsperfdata file");
+        buffer.order(buffer.get(BYTE_ORDER) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+        int entry = buffer.getInt(ENTRY_OFFSET);
+        int entries = buffer.getInt(NUM_ENTRIES);
+        for (int i = 0; i < entries; i++) {
+            // Scalar longs have a vector length of 0
+            if (buffer.get(entry + DATA_TYPE) == 'J' && buffer.getInt(entry + VECTOR_LENGTH) == 0
+                && readName(buffer, entry + buffer.getInt(entry + NAME_OFFSET)).equals(counter)) {
+                return buffer.getLong(entry + buffer.getInt(entry + DATA_OFFSET));
+            }
+            entry += buffer.getInt(entry + ENTRY_LENGTH);
+        }
+        return -1;
+    }
+
+    private static String readName(ByteBuffer buffer, int start) {
+        int end = start;
+        while (buffer.get(end) != 0) end++;
+        return new String(buffer.array(), start, end - start, StandardCharsets.US_ASCII);
+    }
+}
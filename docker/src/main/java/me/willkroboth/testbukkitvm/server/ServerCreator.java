@@ -1,8 +1,11 @@
 package me.willkroboth.testbukkitvm.server;
 
+import me.willkroboth.testbukkitvm.chunks.ChunkStore;
+import me.willkroboth.testbukkitvm.vm.AsyncVMManager;
 import me.willkroboth.testbukkitvm.vm.Snapshot;
 import me.willkroboth.testbukkitvm.vm.VMCreator;
 import me.willkroboth.testbukkitvm.vm.VMManager;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
 import org.libvirt.LibvirtException;
 import org.xml.sax.SAXException;
 
@@ -11,7 +14,11 @@ import javax.xml.transform.TransformerException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class ServerCreator {
     private static final String BASE_STORAGE = "serverTemplate";
@@ -19,57 +26,250 @@ public class ServerCreator {
     //  Actually, vmImages should probably also be cached on host machine since they should be reusable
     //  Is it possible to have the Docker container access external files?
     //  See: Docker volumes?
-    private static final String VERSIONS_STORAGE = "serverVersions";
+    private static final String VERSIONS_STORAGE = VMCreator.SERVER_VERSIONS;
 
     private final VMCreator vmCreator;
 
     private final File serverTemplate;
     private final File serverVersions;
+    private final ChunkStore versionStore;
+
+    private boolean trainClassDataSharing = true;
+    private WorldCache worldCache;
+    private WorldSettings worldSettings = WorldSettings.DEFAULT;
 
     public ServerCreator(VMCreator vmCreator, File storageDirectory) {
+        this(vmCreator, storageDirectory, null);
+    }
+
+    /**
+     * @param versionStore Where to find server jars that aren't in the server versions directory, or null. Most of
+     *                     the classes in a server jar are the same between versions, so storing many versions in a
+     *                     {@link ChunkStore} is a lot smaller than keeping every jar.
+     */
+    public ServerCreator(VMCreator vmCreator, File storageDirectory, ChunkStore versionStore) {
         this.vmCreator = vmCreator;
 
         this.serverTemplate = new File(storageDirectory, BASE_STORAGE);
         this.serverVersions = new File(storageDirectory, VERSIONS_STORAGE);
+        this.versionStore = versionStore;
+    }
+
+    /**
+     * @param train Whether new servers should be started once while creating them, so {@code trainCDS.sh} can make a
+     *              class data sharing archive that {@code run.sh} starts the server with. This makes creating a server
+     *              take as long as starting it once more, but every start from the {@link Snapshot#SERVER} snapshot
+     *              is faster.
+     */
+    public ServerCreator setTrainClassDataSharing(boolean train) {
+        this.trainClassDataSharing = train;
+        return this;
+    }
+
+    /**
+     * @param cache    Where to find worlds generated for previous servers, and to store the worlds new servers generate.
+     *                 Null to let every server generate its own world when it first starts.
+     * @param settings What the worlds should look like. Servers are made with these settings even if the world isn't
+     *                 cached yet.
+     */
+    public ServerCreator setWorldCache(WorldCache cache, WorldSettings settings) {
+        this.worldCache = cache;
+        this.worldSettings = settings;
+        return this;
+    }
+
+    public static String versionArtifactName(String version) {
+        return VERSIONS_STORAGE + "/" + version + ".jar";
+    }
+
+    /**
+     * Adds the jar for a version to the version store, so it can be deleted from the server versions directory.
+     */
+    public ChunkStore.PutResult storeVersion(String version) throws IOException {
+        if (versionStore == null) throw new IllegalStateException("This ServerCreator doesn't have a version store");
+        return versionStore.put(versionArtifactName(version), new File(serverVersions, version + ".jar").toPath());
+    }
+
+    public ServerManager createServer(String version) throws LibvirtException, IOException, ParserConfigurationException, SAXException, TransformerException, InterruptedException {
+        return createServer(version, version);
     }
 
-    public ServerManager createServer(String version) throws LibvirtException, IOException, ParserConfigurationException, SAXException, TransformerException {
+    /**
+     * @param vmName The name of the new VM, so there can be more than one VM for the same version.
+     */
+    public ServerManager createServer(String version, String vmName) throws LibvirtException, IOException, ParserConfigurationException, SAXException, TransformerException, InterruptedException {
         // Lookup version
         File serverJar = new File(serverVersions, version + ".jar");
         if (!serverJar.exists()) {
-            throw new FileNotFoundException("Could not find server version " + version + " (" + serverJar + ")");
+            if (versionStore == null || !versionStore.contains(versionArtifactName(version))) {
+                throw new FileNotFoundException("Could not find server version " + version + " (" + serverJar + ")");
+            }
+
+            System.out.println("Restoring " + version + " from version store");
+            if (!serverVersions.isDirectory() && !serverVersions.mkdirs()) {
+                throw new NoSuchFileException("Could not create storage directory <" + serverVersions + ">");
+            }
+            versionStore.restore(versionArtifactName(version), serverJar.toPath());
+        } else if (versionStore != null && !versionStore.contains(versionArtifactName(version))) {
+            // Keep it in the store too, so other machines with a copy of the store don't need to download it
+            System.out.println("Adding " + version + " to version store: " + storeVersion(version));
         }
 
+        // Lookup world
+        //  Without a world cache, servers keep Paper's default settings (including a random seed)
+        String worldKey = worldSettings.key(version);
+        File cachedWorld = worldCache == null ? null : worldCache.get(worldKey);
+        File serverProperties = worldCache == null ? null : writeServerProperties();
+
         // Create VM
-        VMManager vmManager = vmCreator.createVM(version);
+        VMManager vmManager = vmCreator.createVM(vmName);
+
+        AsyncVMManager vm = new AsyncVMManager(vmManager);
 
         // Initialize VM
-        vmManager.restoreSnapshot(Snapshot.BASE);
-        vmManager.domain().resume();
-        vmManager.waitForGuestAgent();
+        CompletableFuture<Void> started = vm.restoreSnapshot(Snapshot.BASE)
+            .thenCompose(ignored -> vm.resume())
+            .thenCompose(ignored -> vm.waitForGuestAgent());
 
-        int resetNetworkingPID = vmManager.executeCommandAsync("/root/vmFiles/resetNetworking.sh", false);
+        // Reset networking while the server uploads
+        //  This is started first, so it doesn't have to wait in the queue behind the upload
+        CompletableFuture<Integer> resetNetworkingPID = started
+            .thenCompose(ignored -> vm.executeCommandAsync("/root/vmFiles/resetNetworking.sh", false));
+        CompletableFuture<GuestExecStatus> networkReset = resetNetworkingPID
+            .thenCompose(vm::waitForProcessFinish);
 
         // Upload server to vm
         Path serverPath = Path.of("root", "server");
-        vmManager.writeFile(serverTemplate, serverPath);
-        // Transferring the server jar takes a while...
-        vmManager.writeFile(serverJar, serverPath.resolve("server.jar"));
-
-        // Allow executing scripts
-        vmManager.executeCommand("chmod +x /root/server/run.sh");
+        CompletableFuture<GuestExecStatus> serverUploaded = resetNetworkingPID
+            .thenCompose(ignored -> vm.writeFile(serverTemplate, serverPath))
+            .thenCompose(ignored -> copyServerJar(vmManager, vm, version, serverJar, serverPath.resolve("server.jar")))
+            .thenCompose(ignored -> setupWorld(vm, serverProperties, cachedWorld, serverPath))
+            // Allow executing scripts
+            .thenCompose(ignored -> vm.executeCommand("chmod +x /root/server/run.sh /root/server/trainCDS.sh /root/server/startServer.sh"));
 
-        // Wait for networking update to complete
-        //  (if it's not done already, probably faster than the jar upload, which is why we did it async :) )
+        // Wait for everything to complete
+        //  (networking is probably faster than the jar upload, which is why we did it at the same time :) )
+        AsyncVMManager.await(serverUploaded);
         System.out.println("Waiting for network to connect...");
-        vmManager.waitForProcessFinish(resetNetworkingPID);
+        AsyncVMManager.await(networkReset);
         System.out.println("Done!");
 
+        if (serverProperties != null) Files.delete(serverProperties.toPath());
+        if (cachedWorld != null) System.out.println("Using cached world " + worldKey);
+
+        // Paper downloads the Mojang jar when it first starts, so this has to wait for the network
+        //  If the world is being cached, the training run can also generate it
+        boolean generateWorld = worldCache != null && cachedWorld == null;
+        boolean worldGenerated = false;
+        if (trainClassDataSharing) {
+            worldGenerated = trainClassDataSharing(vmManager, version, worldCache != null);
+        } else if (generateWorld) {
+            System.out.println("Generating world " + worldKey + "...");
+            ServerManager server = new ServerManager(vmManager);
+            server.startServer();
+            server.stopServer();
+            worldGenerated = true;
+            System.out.println("Done!");
+        }
+        // A failed training run can leave a half-generated world, which shouldn't be handed to every later server
+        //  or kept in this one, so the server generates it again when it starts
+        if (generateWorld && worldGenerated) {
+            cacheWorld(vmManager, worldKey);
+        } else if (generateWorld) {
+            vmManager.executeCommand("sh", new String[]{"-c", "cd /root/server && rm -rf world world_nether world_the_end"});
+        }
+
         // Create snapshot
+        //  This is the one reverted before every test, so keep it somewhere fast to revert
         vmManager.domain().suspend();
-        vmManager.createSnapshot(Snapshot.SERVER);
+        vmManager.createSnapshot(Snapshot.SERVER, VMManager.SnapshotMode.EXTERNAL);
 
         // Create manager
         return new ServerManager(vmManager);
     }
+
+    /**
+     * @return True if the training run started and stopped the server normally.
+     */
+    private static boolean trainClassDataSharing(VMManager vmManager, String version, boolean keepWorld) throws LibvirtException {
+        System.out.println("Training class data sharing archive for " + version + "...");
+        long startTime = System.nanoTime();
+        GuestExecStatus training = keepWorld ?
+            vmManager.executeCommand("sh", new String[]{"/root/server/trainCDS.sh", "600", "keep-world"}) :
+            vmManager.executeCommand("/root/server/trainCDS.sh");
+        long millis = (System.nanoTime() - startTime) / 1_000_000;
+
+        if (training.exitCode() == 0) {
+            System.out.println("Done! (" + millis + " ms) " + Objects.toString(training.outData(), "").trim());
+            return true;
+        }
+
+        // run.sh still works without the archive, it just starts slower
+        System.out.println("Training failed, the server will start without an archive:\n" +
+            Objects.toString(training.outData(), "") + Objects.toString(training.errData(), ""));
+        return false;
+    }
+
+    private File writeServerProperties() throws IOException {
+        File serverProperties = File.createTempFile("server", ".properties");
+        Files.write(serverProperties.toPath(), worldSettings.serverProperties());
+        return serverProperties;
+    }
+
+    private static CompletableFuture<?> setupWorld(AsyncVMManager vm, File serverProperties, File cachedWorld, Path serverPath) {
+        if (serverProperties == null) return CompletableFuture.completedFuture(null);
+
+        // Paper keeps any settings that are already in server.properties when it fills in the rest
+        CompletableFuture<?> written = vm.writeFile(serverProperties, serverPath.resolve("server.properties"));
+        if (cachedWorld == null) return written;
+
+        // Unpacking a cached world is much faster than generating spawn chunks in the VM
+        return written
+            .thenCompose(ignored -> vm.writeFile(cachedWorld, serverPath.resolve("world.tar.gz")))
+            .thenCompose(ignored -> vm.executeCommand("sh", new String[]{"-c",
+                "tar -xzf /root/server/world.tar.gz -C /root/server && rm /root/server/world.tar.gz"}));
+    }
+
+    private void cacheWorld(VMManager vmManager, String worldKey) throws LibvirtException, IOException {
+        // Paper makes a folder for each dimension
+        GuestExecStatus packed = vmManager.executeCommand("sh", new String[]{"-c",
+            "cd /root/server && tar -czf /tmp/world.tar.gz $(ls -d world world_nether world_the_end 2>/dev/null)"});
+        if (packed.exitCode() != 0) {
+            System.out.println("Could not pack world " + worldKey + ", it won't be cached: " + packed.errData());
+            return;
+        }
+
+        File archive = File.createTempFile("world", ".tar.gz");
+        vmManager.readFile(Path.of("/tmp/world.tar.gz"), archive);
+        worldCache.put(worldKey, archive.toPath());
+
+        // Don't keep a second copy of the world in the server snapshot
+        vmManager.executeCommand("rm", new String[]{"/tmp/world.tar.gz"});
+    }
+
+    private static CompletableFuture<?> copyServerJar(VMManager vmManager, AsyncVMManager vm, String version, File serverJar, Path destination) {
+        // VMs made with the serverVersions folder shared can copy the jar themselves, which is almost instant
+        //  Older VMs (or if the copy fails for some reason) fall back to uploading it
+        if (sharesServerVersions(vmManager)) {
+            return vm.executeCommand("sh", new String[]{"/root/vmFiles/copyServerVersion.sh", version, "/" + destination})
+                .thenCompose(status -> {
+                    if (status.exitCode() == 0) return CompletableFuture.completedFuture(true);
+
+                    System.out.println("Could not copy " + version + " from the shared folder, uploading it instead: " + status.errData());
+                    return vm.writeFileIfChanged(serverJar, destination);
+                });
+        }
+
+        // Transferring the server jar takes a while...
+        //  but we can skip it if the VM already has this exact jar
+        return vm.writeFileIfChanged(serverJar, destination);
+    }
+
+    private static boolean sharesServerVersions(VMManager vmManager) {
+        try {
+            return vmManager.domain().getXMLDesc(0).contains("<target dir='" + VMCreator.SERVER_VERSIONS + "'/>");
+        } catch (LibvirtException e) {
+            return false;
+        }
+    }
 }
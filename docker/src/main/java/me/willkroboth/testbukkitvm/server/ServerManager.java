@@ -2,20 +2,155 @@ package me.willkroboth.testbukkitvm.server;
 
 import me.willkroboth.testbukkitvm.vm.Snapshot;
 import me.willkroboth.testbukkitvm.vm.VMManager;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
 import org.libvirt.LibvirtException;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 public class ServerManager {
+    private static final long STARTUP_TIMEOUT_MILLIS = 600_000;
+    private static final long POLL_MILLIS = 500;
+
     private final VMManager vmManager;
 
     public ServerManager(VMManager vmManager) {
         this.vmManager = vmManager;
     }
 
-    public void rerunServer() throws LibvirtException {
+    public VMManager vmManager() {
+        return vmManager;
+    }
+
+    public void rerunServer() throws LibvirtException, IOException {
         vmManager.restoreSnapshot(Snapshot.SERVER);
         vmManager.domain().resume();
 
         vmManager.waitForGuestAgent();
 //        System.out.println(vmManager.executeCommand("/root/server/run.sh"));
     }
+
+    /**
+     * Restores the {@link Snapshot#WARM} snapshot made by {@link #warmUp}, where the server is already running.
+     */
+    public void rerunWarmServer() throws LibvirtException, IOException {
+        vmManager.restoreSnapshot(Snapshot.WARM);
+        vmManager.domain().resume();
+
+        vmManager.waitForGuestAgent();
+    }
+
+    public boolean hasWarmSnapshot() throws LibvirtException {
+        if (vmManager.externalSnapshot(Snapshot.WARM.getName()).exists()) return true;
+        for (String name : vmManager.domain().snapshotListNames()) {
+            if (name.equals(Snapshot.WARM.getName())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts the server from the {@link Snapshot#SERVER} snapshot and runs the workload until the JIT settles, then
+     * takes the {@link Snapshot#WARM} snapshot. Tests that restore that snapshot get a running server with most of its
+     * hot code already compiled, instead of spending their first seconds in the interpreter.
+     */
+    public void warmUp(WarmUp workload) throws LibvirtException, IOException, InterruptedException, ParserConfigurationException, TransformerException {
+        rerunServer();
+
+        System.out.println("Starting server...");
+        long startTime = System.nanoTime();
+        startServer();
+
+        System.out.println("Warming up server...");
+        Path perfData = findPerfData();
+        long compiles = compileCount(perfData);
+        long deadline = System.currentTimeMillis() + workload.timeoutMillis();
+        int rounds = 0;
+        while (true) {
+            for (String command : workload.commands()) {
+                sendCommand(command);
+            }
+            Thread.sleep(workload.roundMillis());
+            rounds++;
+
+            long newCompiles = compileCount(perfData);
+            System.out.println("Round " + rounds + ": " + (newCompiles - compiles) + " compilations");
+            if (newCompiles - compiles <= workload.settledCompiles()) break;
+            compiles = newCompiles;
+
+            if (System.currentTimeMillis() > deadline) {
+                System.out.println("JIT did not settle within " + workload.timeoutMillis() + "ms, taking the snapshot anyway");
+                break;
+            }
+        }
+        System.out.printf("Done! (%d rounds, %.1f s)%n", rounds, (System.nanoTime() - startTime) / 1e9);
+
+        // Like the server snapshot, this is reverted often, so keep it somewhere fast to revert
+        vmManager.domain().suspend();
+        vmManager.createSnapshot(Snapshot.WARM, VMManager.SnapshotMode.EXTERNAL);
+    }
+
+    /**
+     * Starts the server in the background and waits until it has finished starting. Commands can be sent to it with
+     * {@link #sendCommand}.
+     */
+    public void startServer() throws LibvirtException, InterruptedException {
+        // startServer.sh returns as soon as the server is running in the background
+        GuestExecStatus started = vmManager.executeCommand("sh", new String[]{"/root/server/startServer.sh"});
+        if (started.exitCode() != 0) {
+            throw new IllegalStateException("Could not start server: " + started.errData());
+        }
+
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            // Paper prints "Done (12.345s)! For help, type "help"" once it has started
+            GuestExecStatus log = vmManager.executeCommand("grep", new String[]{"-q", "Done (", "/root/server/server.log"});
+            if (log.exitCode() == 0) return;
+            Thread.sleep(POLL_MILLIS);
+        }
+        throw new IllegalStateException("Server did not start within " + STARTUP_TIMEOUT_MILLIS + "ms");
+    }
+
+    /**
+     * Stops a server started by {@link #startServer}, waiting until it has saved and exited.
+     */
+    public void stopServer() throws LibvirtException, InterruptedException {
+        sendCommand("stop");
+
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            GuestExecStatus running = vmManager.executeCommand("pgrep", new String[]{"-f", "server.jar"});
+            if (running.exitCode() != 0) {
+                // Nothing needs the console anymore
+                vmManager.executeCommand("sh", new String[]{"-c", "pkill -x tail; rm -f /root/server/console"});
+                return;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        throw new IllegalStateException("Server did not stop within " + STARTUP_TIMEOUT_MILLIS + "ms");
+    }
+
+    public void sendCommand(String command) throws LibvirtException {
+        vmManager.executeCommand("sh", new String[]{"-c", "echo \"$1\" > /root/server/console", "sh", command});
+    }
+
+    // The server's JVM publishes its counters in /tmp/hsperfdata_<user>/<pid>
+    private Path findPerfData() throws LibvirtException {
+        GuestExecStatus pid = vmManager.executeCommand("pgrep", new String[]{"-f", "server.jar"});
+        if (pid.exitCode() != 0 || pid.outData() == null) throw new IllegalStateException("Server is not running");
+        return Path.of("/tmp/hsperfdata_root", pid.outData().trim().split("\\s+")[0]);
+    }
+
+    private long compileCount(Path perfData) throws LibvirtException, IOException {
+        File localCopy = File.createTempFile("hsperfdata", null);
+        try {
+            vmManager.readFile(perfData, localCopy);
+            return PerfData.readLong(localCopy.toPath(), "sun.ci.totalCompiles");
+        } finally {
+            Files.deleteIfExists(localCopy.toPath());
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package me.willkroboth.testbukkitvm.server;
+
+import java.util.List;
+
+/**
+ * A workload for {@link ServerManager#warmUp}. The commands are sent to the server console over and over until the
+ * JIT stops compiling much, so the {@code Warm} snapshot has a server that already runs at full speed.
+ *
+ * @param commands        Console commands for one round of the workload. Unknown commands (e.g. {@code tick} on old
+ *                        versions) just print an error, so the same workload works for every version.
+ * @param roundMillis     How long to wait after sending a round before checking the JIT.
+ * @param settledCompiles The JIT counts as settled once a round causes at most this many compilations.
+ * @param timeoutMillis   Take the snapshot anyway if the JIT hasn't settled after this long.
+ */
+public record WarmUp(List<String> commands, long roundMillis, int settledCompiles, long timeoutMillis) {
+    /**
+     * Generates and edits chunks around spawn, ticks as fast as possible and runs some common commands.
+     */
+    public static final WarmUp DEFAULT = new WarmUp(List.of(
+        // Chunk generation and loading
+        //  forceload refuses more than 256 chunks at once, so this is 16x16 chunks
+        "forceload add -128 -128 127 127",
+        "fill 0 100 0 15 115 15 minecraft:stone",
+        "fill 0 100 0 15 115 15 minecraft:air",
+        // Ticking
+        "tick sprint 200",
+        "time add 1000",
+        "weather rain",
+        "weather clear",
+        // Command dispatch
+        "say Warming up",
+        "list",
+        "gamerule randomTickSpeed 3",
+        "execute positioned 0 100 0 run summon minecraft:armor_stand",
+        "kill @e[type=minecraft:armor_stand]",
+        "forceload remove all"
+    ), 10_000, 20, 300_000);
+}
@@ -0,0 +1,104 @@
+package me.willkroboth.testbukkitvm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Worlds generated by {@link ServerCreator}, stored as {@code .tar.gz} files so new servers with the same version and
+ * {@link WorldSettings} can skip generating spawn chunks. The least recently used worlds are deleted when the cache
+ * gets bigger than its budget. Each file's modified time is used as when it was last used, so there's no index to
+ * keep up to date.
+ */
+public class WorldCache {
+    private static final String EXTENSION = ".tar.gz";
+
+    private final Path directory;
+    private final long budgetBytes;
+
+    public WorldCache(Path directory, long budgetBytes) throws IOException {
+        this.directory = directory;
+        this.budgetBytes = budgetBytes;
+
+        File directoryFile = directory.toFile();
+        if (!directoryFile.isDirectory() && !directoryFile.mkdirs()) {
+            throw new NoSuchFileException("Could not create storage directory <" + directory + ">");
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    /**
+     * @return The cached world for this key, or null if it isn't cached. Marks the world as recently used.
+     */
+    public synchronized File get(String key) throws IOException {
+        Path file = file(key);
+        if (!Files.exists(file)) return null;
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        return file.toFile();
+    }
+
+    /**
+     * Moves a world archive into the cache, then deletes old worlds if the cache is over its budget.
+     */
+    public synchronized void put(String key, Path archive) throws IOException {
+        // Move into place in one step, so get never sees half a file
+        Path temporary = directory.resolve(key + EXTENSION + ".tmp");
+        Files.move(archive, temporary, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Cached world " + key + " (" + Files.size(file(key)) + " bytes)");
+
+        evict(key);
+    }
+
+    // Never evicts the world that was just added, even if it's bigger than the whole budget
+    private void evict(String keep) throws IOException {
+        List<Path> worlds;
+        try (Stream<Path> files = Files.list(directory)) {
+            worlds = files.filter(file -> file.getFileName().toString().endsWith(EXTENSION))
+                .sorted(Comparator.comparing(WorldCache::lastModified))
+                .toList();
+        }
+
+        long totalSize = 0;
+        for (Path world : worlds) totalSize += Files.size(world);
+
+        for (Path world : worlds) {
+            if (totalSize <= budgetBytes) break;
+            if (world.equals(file(keep))) continue;
+
+            totalSize -= Files.size(world);
+            Files.delete(world);
+            System.out.println("Evicted world " + world.getFileName());
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized long totalSize() throws IOException {
+        long totalSize = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(EXTENSION)) totalSize += Files.size(file);
+            }
+        }
+        return totalSize;
+    }
+}
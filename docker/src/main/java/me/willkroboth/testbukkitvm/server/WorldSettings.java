@@ -0,0 +1,30 @@
+package me.willkroboth.testbukkitvm.server;
+
+import java.util.List;
+
+/**
+ * The {@code server.properties} settings that decide what a generated world looks like. Worlds are only cached for a
+ * fixed seed, since a random seed would make a different world every time.
+ *
+ * @param levelType          {@code level-type}, e.g. {@code minecraft:normal} or {@code minecraft:flat}.
+ * @param generateStructures {@code generate-structures}.
+ */
+public record WorldSettings(long seed, String levelType, boolean generateStructures) {
+    public static final WorldSettings DEFAULT = new WorldSettings(0, "minecraft:normal", true);
+
+    /**
+     * @return A name for the world this makes in a server version, used as the key in the {@link WorldCache}.
+     */
+    public String key(String version) {
+        return version + "-" + seed + "-" + levelType.replaceAll("[^A-Za-z0-9_.-]", "_")
+            + (generateStructures ? "" : "-nostructures");
+    }
+
+    public List<String> serverProperties() {
+        return List.of(
+            "level-seed=" + seed,
+            "level-type=" + levelType,
+            "generate-structures=" + generateStructures
+        );
+    }
+}
@@ -0,0 +1,222 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
+import org.libvirt.LibvirtException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link VMManager} methods without blocking the calling thread, returning {@link CompletableFuture}s that can
+ * be chained together. This makes it easy to do things at the same time, like uploading files while the network
+ * resets, or setting up many VMs at once.
+ * <p>
+ * Each domain has a queue, and its operations run one at a time in the order they were submitted. This way the guest
+ * agent commands of two operations (like the chunks of two file uploads) never get mixed together. Waiting for a
+ * process is done with separate polls, so other operations can run on the domain while a process is going.
+ * <p>
+ * Almost every operation is a blocking libvirt call through JNA, which would pin a virtual thread to its carrier
+ * anyway, so the queues share a small pool of platform threads instead. A domain's queue only exists while it has
+ * operations waiting, so having lots of VMs doesn't mean having lots of threads or queues sitting around.
+ */
+public class AsyncVMManager {
+    @FunctionalInterface
+    public interface Operation<T> {
+        T run(VMManager manager) throws Exception;
+    }
+
+    // Enough for a few domains to wait on their guest agents without holding up everyone else
+    private static final ExecutorService nativeCalls = Executors.newFixedThreadPool(
+        Math.max(4, Runtime.getRuntime().availableProcessors()),
+        Thread.ofPlatform().name("vm-native-", 0).daemon().factory()
+    );
+
+    // Keyed by domain name, so every AsyncVMManager for the same domain uses the same queue
+    //  Only domains with operations waiting are in here, so destroyed domains don't leave anything behind
+    private static final Map<String, Queue<Runnable>> queues = new ConcurrentHashMap<>();
+
+    private final VMManager manager;
+    private final String domainName;
+
+    public AsyncVMManager(VMManager manager) {
+        this.manager = manager;
+        this.domainName = manager.domainName();
+    }
+
+    public VMManager manager() {
+        return manager;
+    }
+
+    /**
+     * Adds an operation to the end of this domain's queue.
+     *
+     * @return A future that completes with the operation's result once it has run. If the operation throws an
+     * exception, the future completes exceptionally with that exception.
+     */
+    public <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                result.complete(operation.run(manager));
+            } catch (Throwable exception) {
+                result.completeExceptionally(exception);
+            } finally {
+                runNext();
+            }
+        };
+
+        queues.compute(domainName, (name, queue) -> {
+            // The running operation stays at the head of the queue until it finishes
+            if (queue == null) queue = new ArrayDeque<>();
+            queue.add(task);
+            // If nothing is running for this domain, this can start straight away
+            if (queue.size() == 1) nativeCalls.execute(task);
+            return queue;
+        });
+        return result;
+    }
+
+    private void runNext() {
+        queues.computeIfPresent(domainName, (name, queue) -> {
+            queue.remove();
+            if (queue.isEmpty()) return null;
+
+            nativeCalls.execute(queue.peek());
+            return queue;
+        });
+    }
+
+    // Domain management
+    public CompletableFuture<Void> resume() {
+        return submit(manager -> {
+            manager.domain().resume();
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> suspend() {
+        return submit(manager -> {
+            manager.domain().suspend();
+            return null;
+        });
+    }
+
+    // Snapshots
+    public CompletableFuture<Void> createSnapshot(Snapshot snapshot) {
+        return submit(manager -> {
+            manager.createSnapshot(snapshot);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> restoreSnapshot(Snapshot snapshot) {
+        return submit(manager -> {
+            manager.restoreSnapshot(snapshot);
+            return null;
+        });
+    }
+
+    // Guest agent
+    public CompletableFuture<Void> waitForGuestAgent() {
+        // Nothing else can use the guest agent until it's available anyway, so this holds the queue while waiting
+        return submit(manager -> {
+            manager.waitForGuestAgent();
+            return null;
+        });
+    }
+
+    // Shell commands
+    public CompletableFuture<GuestExecStatus> executeCommand(String command) {
+        return executeCommandAsync(command, true).thenCompose(this::waitForProcessFinish);
+    }
+
+    public CompletableFuture<GuestExecStatus> executeCommand(String path, String[] args) {
+        return executeCommandAsync(path, args, true).thenCompose(this::waitForProcessFinish);
+    }
+
+    public CompletableFuture<Integer> executeCommandAsync(String command, boolean captureOutput) {
+        return submit(manager -> manager.executeCommandAsync(command, captureOutput));
+    }
+
+    public CompletableFuture<Integer> executeCommandAsync(String path, String[] args, boolean captureOutput) {
+        return submit(manager -> manager.executeCommandAsync(path, args, captureOutput));
+    }
+
+    public CompletableFuture<GuestExecStatus> waitForProcessFinish(int pid) {
+        CompletableFuture<GuestExecStatus> result = new CompletableFuture<>();
+        pollProcess(pid, new Backoff(VMManager.INITIAL_POLL_MILLIS, VMManager.MAX_PROCESS_POLL_MILLIS), result);
+        return result;
+    }
+
+    private void pollProcess(int pid, Backoff backoff, CompletableFuture<GuestExecStatus> result) {
+        // Each poll goes through the queue separately, so other operations can happen while we wait
+        submit(manager -> {
+            GuestExecStatus status = manager.getProcessStatus(pid);
+            // Like VMManager#waitForProcessFinish, give up if the domain stops instead of polling forever
+            if (!status.exited()) DomainMonitor.checkRunning(manager.domain(), "waiting for process " + pid);
+            return status;
+        }).whenComplete((status, exception) -> {
+            if (exception != null) {
+                result.completeExceptionally(exception);
+            } else if (status.exited()) {
+                result.complete(status);
+            } else {
+                Executor delayed = CompletableFuture.delayedExecutor(backoff.next(), TimeUnit.MILLISECONDS);
+                delayed.execute(() -> pollProcess(pid, backoff, result));
+            }
+        });
+    }
+
+    // File IO
+    public CompletableFuture<Void> writeFile(File localFile, Path remoteDestination) {
+        return submit(manager -> {
+            manager.writeFile(localFile, remoteDestination);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Boolean> writeFileIfChanged(File localFile, Path remoteDestination) {
+        return submit(manager -> manager.writeFileIfChanged(localFile, remoteDestination));
+    }
+
+    public CompletableFuture<Long> readFile(Path remoteSource, File localDestination) {
+        return submit(manager -> manager.readFile(remoteSource, localDestination));
+    }
+
+    // Waiting for results
+
+    /**
+     * Blocks until the future completes, throwing the original exception if it failed. This is useful for getting
+     * back to normal blocking code once a pipeline of operations is set up.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws LibvirtException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for VM operation", exception);
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            // Futures created with thenCompose may wrap the original exception again
+            while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+
+            if (cause instanceof LibvirtException libvirtException) throw libvirtException;
+            if (cause instanceof IOException ioException) throw ioException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            if (cause instanceof Error error) throw error;
+            throw new IllegalStateException("VM operation failed", cause);
+        }
+    }
+}
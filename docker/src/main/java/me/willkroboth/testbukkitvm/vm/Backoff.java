@@ -0,0 +1,29 @@
+package me.willkroboth.testbukkitvm.vm;
+
+// Exponentially increasing delay between polls, so waiting for something slow doesn't spam the guest agent
+public class Backoff {
+    private final long initialMillis;
+    private final long maxMillis;
+
+    private long nextMillis;
+
+    public Backoff(long initialMillis, long maxMillis) {
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+
+        this.nextMillis = initialMillis;
+    }
+
+    /**
+     * @return How long to wait before the next poll. Each call doubles the delay, up to the maximum.
+     */
+    public long next() {
+        long delay = nextMillis;
+        nextMillis = Math.min(nextMillis * 2, maxMillis);
+        return delay;
+    }
+
+    public void reset() {
+        nextMillis = initialMillis;
+    }
+}
@@ -0,0 +1,174 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * A virtio-serial channel for sending raw bytes to and from the guest. Going through the guest agent means every byte
+ * is Base64 encoded inside JSON and split into small chunks, while this channel is just a stream of bytes.
+ * <p>
+ * On the host, libvirt exposes the channel as a unix socket. On the guest, it appears as
+ * {@code /dev/virtio-ports/testbukkitvm.data}. The guest agent is still used to start the scripts in {@code vmFiles}
+ * that read or write the guest side, and to check if they succeeded.
+ * <p>
+ * The channel is added to the VM by {@code createVM.sh}. It needs to be part of the VM before any snapshots are taken,
+ * since restoring a snapshot's memory requires the same devices.
+ */
+public class DataChannel {
+    public static final String NAME = "testbukkitvm.data";
+
+    public static final String RECEIVE_SCRIPT = "/root/vmFiles/receiveFile.sh";
+    public static final String SEND_SCRIPT = "/root/vmFiles/sendFile.sh";
+
+    private static final int BUFFER_BYTES = 1048576; // 2^20
+
+    /**
+     * How long a transfer can go without moving any bytes before we give up on it.
+     */
+    public static final long STALL_TIMEOUT_MILLIS = 10_000;
+    private static final long POLL_MILLIS = 200;
+
+    @FunctionalInterface
+    public interface GuestCheck {
+        /**
+         * Called while a transfer is waiting for the guest.
+         *
+         * @return True if the script on the guest side has failed, so no more bytes will come or be read.
+         */
+        boolean failed() throws LibvirtException;
+    }
+
+    private final UnixDomainSocketAddress socketAddress;
+
+    private DataChannel(Path socketPath) {
+        this.socketAddress = UnixDomainSocketAddress.of(socketPath);
+    }
+
+    /**
+     * Finds the data channel on a running domain.
+     *
+     * @return The channel, or null if the domain does not have one.
+     */
+    public static DataChannel find(Domain domain) throws LibvirtException, IOException {
+        // The socket path is generated when the domain starts, so it is only in the live XML
+        Element config;
+        try {
+            config = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder()
+                .parse(new InputSource(new StringReader(domain.getXMLDesc(0))))
+                .getDocumentElement();
+        } catch (ParserConfigurationException | SAXException exception) {
+            throw new IOException("Could not parse domain XML", exception);
+        }
+
+        NodeList channels = config.getElementsByTagName("channel");
+        for (int i = 0; i < channels.getLength(); i++) {
+            Element channel = (Element) channels.item(i);
+
+            Element target = (Element) channel.getElementsByTagName("target").item(0);
+            if (target == null || !NAME.equals(target.getAttribute("name"))) continue;
+
+            Element source = (Element) channel.getElementsByTagName("source").item(0);
+            if (source == null || source.getAttribute("path").isEmpty()) return null;
+
+            return new DataChannel(Path.of(source.getAttribute("path")));
+        }
+
+        return null;
+    }
+
+    public SocketChannel connect() throws IOException {
+        SocketChannel socket = SocketChannel.open(StandardProtocolFamily.UNIX);
+        socket.connect(socketAddress);
+        return socket;
+    }
+
+    /**
+     * Sends the first {@code size} bytes of a file into the channel.
+     *
+     * @throws IOException If the guest script fails or nothing is sent for {@link #STALL_TIMEOUT_MILLIS}.
+     */
+    public static void send(FileChannel source, long size, SocketChannel socket, GuestCheck guest) throws IOException, LibvirtException {
+        try (Selector selector = Selector.open()) {
+            // Non-blocking, so we can notice if the guest stops reading
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_WRITE);
+
+            long position = 0;
+            long lastProgress = System.currentTimeMillis();
+            while (position < size) {
+                long sent = source.transferTo(position, size - position, socket);
+                if (sent > 0) {
+                    position += sent;
+                    lastProgress = System.currentTimeMillis();
+                    continue;
+                }
+
+                if (selector.select(POLL_MILLIS) == 0) checkStalled(guest, lastProgress, position, size);
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    /**
+     * Reads exactly {@code size} bytes from the channel into a file.
+     *
+     * @throws IOException If the guest script fails or nothing arrives for {@link #STALL_TIMEOUT_MILLIS}.
+     */
+    public static void receive(SocketChannel socket, long size, FileChannel target, GuestCheck guest) throws IOException, LibvirtException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        try (Selector selector = Selector.open()) {
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ);
+
+            long received = 0;
+            long lastProgress = System.currentTimeMillis();
+            while (received < size) {
+                buffer.clear().limit((int) Math.min(BUFFER_BYTES, size - received));
+                int read = socket.read(buffer);
+                if (read == -1) {
+                    throw new EOFException("Data channel closed after " + received + "/" + size + " bytes");
+                }
+                if (read == 0) {
+                    if (selector.select(POLL_MILLIS) == 0) checkStalled(guest, lastProgress, received, size);
+                    selector.selectedKeys().clear();
+                    continue;
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    received += target.write(buffer);
+                }
+                lastProgress = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static void checkStalled(GuestCheck guest, long lastProgress, long bytes, long size) throws IOException, LibvirtException {
+        if (guest.failed()) {
+            throw new IOException("Guest side of the data channel failed after " + bytes + "/" + size + " bytes");
+        }
+        if (System.currentTimeMillis() - lastProgress > STALL_TIMEOUT_MILLIS) {
+            throw new IOException("Data channel stalled after " + bytes + "/" + size + " bytes");
+        }
+    }
+}
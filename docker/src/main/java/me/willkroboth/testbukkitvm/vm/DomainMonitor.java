@@ -0,0 +1,115 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.libvirt.event.AgentLifecycleListener;
+import org.libvirt.event.LifecycleListener;
+
+/**
+ * Wakes up a waiting thread when the domain's guest agent or lifecycle state changes. This lets us wait for the guest
+ * agent without polling it constantly, and stop waiting as soon as the domain crashes or stops.
+ * <p>
+ * If the libvirt event loop is not running (see {@link LibvirtEvents}), no events are received and
+ * {@link #awaitEvent(long)} just waits for the given timeout, so the caller should poll with a {@link Backoff}.
+ */
+public class DomainMonitor implements AutoCloseable {
+    private final Domain domain;
+    private final String domainName;
+
+    private final AgentLifecycleListener agentListener;
+    private final LifecycleListener lifecycleListener;
+
+    private final Object lock = new Object();
+    private boolean changed = false;
+
+    private final boolean registered;
+
+    public DomainMonitor(Domain domain) throws LibvirtException {
+        this.domain = domain;
+        this.domainName = domain.getName();
+
+        this.agentListener = (eventDomain, state, reason) -> {
+            if (!eventDomain.equals(domain)) return;
+
+            signal();
+        };
+        this.lifecycleListener = (eventDomain, event) -> {
+            if (!eventDomain.equals(domain)) return 0;
+
+            System.out.println("Domain " + domainName + " event: " + event);
+            signal();
+            return 0;
+        };
+
+        this.registered = LibvirtEvents.isRunning();
+        if (registered) {
+            domain.addAgentLifecycleListener(agentListener);
+            domain.addLifecycleListener(lifecycleListener);
+        }
+    }
+
+    private void signal() {
+        synchronized (lock) {
+            changed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until an event is received for the domain or the timeout passes, whichever comes first.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     */
+    public void awaitEvent(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        synchronized (lock) {
+            try {
+                long remaining = timeoutMillis;
+                while (!changed && remaining > 0) {
+                    lock.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for " + domainName, exception);
+            }
+            changed = false;
+        }
+    }
+
+    /**
+     * Makes sure the domain is still running, so we don't wait forever for something that can't happen.
+     *
+     * @param task What we are waiting for, for the error message.
+     * @throws IllegalStateException If the domain has crashed, stopped or paused.
+     */
+    public void checkRunning(String task) throws LibvirtException {
+        checkRunning(domain, task);
+    }
+
+    /**
+     * Like {@link #checkRunning(String)}, for when there isn't a monitor for the domain.
+     */
+    public static void checkRunning(Domain domain, String task) throws LibvirtException {
+        DomainState state = domain.getInfo().state;
+        switch (state) {
+            case VIR_DOMAIN_CRASHED, VIR_DOMAIN_SHUTOFF, VIR_DOMAIN_SHUTDOWN, VIR_DOMAIN_PAUSED ->
+                throw new IllegalStateException("Domain " + domain.getName() + " is " + state + " while " + task);
+            default -> {
+                // Still going
+            }
+        }
+    }
+
+    @Override
+    public void close() throws LibvirtException {
+        if (!registered) return;
+
+        Connect connect = domain.getConnect();
+        connect.removeAgentLifecycleListener(agentListener);
+        connect.removeLifecycleListener(lifecycleListener);
+    }
+}
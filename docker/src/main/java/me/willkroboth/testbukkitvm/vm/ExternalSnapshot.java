@@ -0,0 +1,121 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A snapshot that keeps the VM's memory in a file on a tmpfs, instead of inside the qcow2 image like libvirt's
+ * internal snapshots. Reverting an internal snapshot reads the whole memory state back out of the image, which is
+ * slow, while reverting this just restores the memory from RAM and puts a new empty overlay over the disk.
+ * <p>
+ * Taking the snapshot:
+ * <ol>
+ *     <li>Saves the domain's memory to {@link #memoryFile()} https://libvirt.org/html/libvirt-libvirt-domain.html#virDomainSave
+ *     (this stops the domain)</li>
+ *     <li>Moves the image to {@link #diskFile()}, which is never written to again</li>
+ *     <li>Creates a new qcow2 overlay at the image's path, backed by the moved image</li>
+ *     <li>Removes the disk's backing chain from the domain XML in the memory file (see {@link SaveImage}), since it
+ *     was recorded before the overlay existed. libvirt probes the chain from the image again when restoring.</li>
+ *     <li>Restores the domain from the memory file, so it carries on as if nothing happened</li>
+ * </ol>
+ * Reverting throws away the overlay, creates a new one, and restores the memory file again. The image keeps the same
+ * path the whole time, so the rest of the domain's configuration never changes.
+ * <p>
+ * Internal snapshots taken before an external snapshot are stuck in the backing file, where QEMU won't find them, so
+ * reverting those won't work anymore. Also, the memory files are gone after the host restarts.
+ */
+public record ExternalSnapshot(String name, Path memoryFile, Path diskFile) {
+    // Hugepage filesystems (hugetlbfs) don't support normal writes, so the save file can't go there
+    private static Path memoryDirectory = Path.of("/dev/shm", "testbukkitvm");
+
+    public static Path getMemoryDirectory() {
+        return memoryDirectory;
+    }
+
+    /**
+     * @param directory Where to keep the memory of external snapshots. This should be a tmpfs, or reverting will have
+     *                  to read the memory from disk again.
+     */
+    public static void setMemoryDirectory(Path directory) {
+        memoryDirectory = directory;
+    }
+
+    public static ExternalSnapshot of(String domainName, File imageFile, String name) {
+        Path memoryFile = memoryDirectory.resolve(domainName).resolve(name + ".save");
+
+        String imageName = imageFile.getName();
+        int extension = imageName.lastIndexOf('.');
+        String diskName = extension == -1 ? imageName + "." + name : imageName.substring(0, extension) + "." + name + imageName.substring(extension);
+
+        return new ExternalSnapshot(name, memoryFile, imageFile.toPath().resolveSibling(diskName));
+    }
+
+    public boolean exists() {
+        return Files.exists(memoryFile) && Files.exists(diskFile);
+    }
+
+    /**
+     * @return How much space this snapshot takes up, not counting any snapshots it was taken after.
+     */
+    public long size() throws IOException {
+        return Files.size(memoryFile) + Files.size(diskFile);
+    }
+
+    /**
+     * @return Where {@link UploadCache} keeps the digests of files uploaded before this snapshot was taken.
+     */
+    public Path digestsFile() {
+        return diskFile.resolveSibling(diskFile.getFileName() + ".uploads");
+    }
+
+    void create(Domain domain, File imageFile, StorageProfile storageProfile) throws LibvirtException, IOException {
+        if (Files.exists(diskFile)) {
+            // The old disk file might still be backing the image, so it can't be replaced
+            throw new IllegalStateException("External snapshot " + name + " already exists for " + imageFile);
+        }
+        Files.createDirectories(memoryFile.getParent());
+        Files.deleteIfExists(memoryFile);
+
+        domain.save(memoryFile.toString());
+
+        Files.move(imageFile.toPath(), diskFile);
+        createOverlay(imageFile.toPath(), storageProfile);
+
+        // The XML in the save file still has the backing chain from before the overlay was added, and libvirt would
+        //  restore the domain with that instead of looking at the image again (SnapshotFanOut does the same for clones)
+        SaveImage.read(memoryFile).setImage(memoryFile, imageFile.toPath());
+
+        domain.getConnect().restore(memoryFile.toString());
+    }
+
+    void revert(Domain domain, File imageFile, StorageProfile storageProfile) throws LibvirtException, IOException {
+        if (domain.isActive() == 1) {
+            domain.destroy();
+        }
+
+        Files.deleteIfExists(imageFile.toPath());
+        createOverlay(imageFile.toPath(), storageProfile);
+
+        // The domain comes back in the state it was saved in, so paused if it was paused when the snapshot was taken
+        //  create() already removed the old backing chain from the save file, so libvirt finds the new overlay's chain
+        domain.getConnect().restore(memoryFile.toString());
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(memoryFile);
+        Files.deleteIfExists(diskFile);
+        Files.deleteIfExists(digestsFile());
+    }
+
+    /**
+     * Creates a new qcow2 image that starts out the same as this snapshot's disk, and stores changes to it separately.
+     */
+    void createOverlay(Path image, StorageProfile storageProfile) throws IOException {
+        QemuImg.createOverlay(image, diskFile, storageProfile.overlayOptions());
+    }
+}
@@ -0,0 +1,44 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.libvirt.Library;
+import org.libvirt.LibvirtException;
+
+// Libvirt only delivers domain events while something is running its event loop https://libvirt.org/html/libvirt-libvirt-event.html
+//  If the loop is not running, DomainMonitor falls back to polling
+public class LibvirtEvents {
+    private LibvirtEvents() {
+
+    }
+
+    private static volatile boolean running = false;
+
+    /**
+     * Starts processing libvirt events on a background thread. This needs to be called before a
+     * {@link org.libvirt.Connect} is opened, otherwise that connection will not receive any events.
+     */
+    public static synchronized void startEventLoop() throws LibvirtException {
+        if (running) return;
+
+        Library.initEventLoop();
+
+        Thread eventThread = new Thread(() -> {
+            try {
+                Library.runEventLoop();
+            } catch (InterruptedException ignored) {
+                // Program is shutting down
+            } catch (LibvirtException exception) {
+                System.out.println("Libvirt event loop stopped: " + exception.getMessage());
+            } finally {
+                running = false;
+            }
+        }, "libvirt-events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+
+        running = true;
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,224 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings for how a VM uses the host's hardware, applied to the domain XML by {@link VMCreator#createVM}.
+ * See https://libvirt.org/formatdomain.html and https://libvirt.org/kbase/kvm-realtime.html for what these do.
+ * <p>
+ * Most of these only change what the host does, so they are applied to the base VM's snapshots too. The guest can see
+ * {@link #hostPassthrough} and {@link #diskQueues} though, and the snapshots' memory and device state was saved with
+ * whatever the base VM had then, so those can't be changed afterward. They are only allowed if the snapshots were
+ * already taken with them, by changing {@code createVM.sh} and taking the snapshots again (see {@link #guestMismatch}).
+ *
+ * @param hostPassthrough Give the VM the host's exact CPU instead of a model of it, so the JVM can use every CPU feature.
+ * @param pinVCPUs        Pin each vCPU to its own host core, so vCPUs don't bounce between cores or share them with
+ *                        other VMs. QEMU's own threads (emulator and I/O threads) are pinned to {@link #HOUSEKEEPING_CORE}.
+ * @param hugepages       Back the VM's memory with hugepages. The host needs enough hugepages reserved (see
+ *                        {@code vm.nr_hugepages}), or the VM won't start.
+ * @param ioThreads       Number of I/O threads that handle the virtio disks, instead of QEMU's main thread. 0 to not
+ *                        use I/O threads.
+ * @param diskQueues      Number of queues for virtio disks, so each vCPU can submit I/O by itself. 0 to use the default.
+ */
+public record PerformanceProfile(boolean hostPassthrough, boolean pinVCPUs, boolean hugepages, int ioThreads, int diskQueues) {
+    /**
+     * Leaves the domain as it was configured when the base VM was created.
+     */
+    public static final PerformanceProfile DEFAULT = new PerformanceProfile(false, false, false, 0, 0);
+    /**
+     * Everything that doesn't need the host to be set up specially (so no hugepages), and works with the snapshots
+     * made by the normal {@code createVM.sh}.
+     */
+    public static final PerformanceProfile TUNED = new PerformanceProfile(false, true, false, 1, 0);
+    /**
+     * {@link #TUNED} plus the settings the guest can see. The base VM's snapshots need to be taken with
+     * {@code --cpu host-passthrough} and 4 disk queues for this to work.
+     */
+    public static final PerformanceProfile TUNED_PASSTHROUGH = new PerformanceProfile(true, true, false, 1, 4);
+
+    public static final int HOUSEKEEPING_CORE = 0;
+
+    // Cores are handed out to VMs in order, so VMs don't share cores until we run out
+    private static int nextCore = HOUSEKEEPING_CORE + 1;
+
+    /**
+     * @return Whether this changes anything the guest can see, which the base VM's snapshots need to have already.
+     */
+    public boolean changesGuest() {
+        return hostPassthrough || diskQueues > 0;
+    }
+
+    public PerformanceProfile withHugepages(boolean hugepages) {
+        return new PerformanceProfile(hostPassthrough, pinVCPUs, hugepages, ioThreads, diskQueues);
+    }
+
+    /**
+     * @return Host cores for each of the vCPUs of a new VM, or an empty list if vCPUs aren't pinned.
+     */
+    public List<Integer> allocateCores(int vcpus) {
+        if (!pinVCPUs) return List.of();
+
+        int hostCores = Runtime.getRuntime().availableProcessors();
+        List<Integer> cores = new ArrayList<>();
+        boolean wrapped = false;
+        synchronized (PerformanceProfile.class) {
+            for (int i = 0; i < vcpus; i++) {
+                if (nextCore >= hostCores) {
+                    nextCore = HOUSEKEEPING_CORE + 1;
+                    wrapped = true;
+                }
+                // A host with only one core can't keep one for housekeeping
+                cores.add(Math.min(nextCore++, hostCores - 1));
+            }
+        }
+        if (wrapped) System.out.println("Ran out of host cores to pin vCPUs to, some VMs will share cores");
+        return cores;
+    }
+
+    public static int vcpuCount(Element domainElement) {
+        Node vcpu = domainElement.getElementsByTagName("vcpu").item(0);
+        return vcpu == null ? 1 : Integer.parseInt(vcpu.getTextContent().trim());
+    }
+
+    /**
+     * Changes a new {@code <domain>} element to use this profile.
+     *
+     * @param cores From {@link #allocateCores}. Use the same cores for a domain and its snapshots.
+     */
+    public void apply(Element domainElement, List<Integer> cores) {
+        if (hostPassthrough) {
+            Element cpu = child(domainElement, "cpu");
+            cpu.setAttribute("mode", "host-passthrough");
+            cpu.setAttribute("check", "none");
+            // Models and features only make sense for host-model and custom CPUs
+            removeChildren(cpu, "model");
+            removeChildren(cpu, "feature");
+            removeChildren(cpu, "vendor");
+        }
+
+        if (diskQueues > 0) {
+            for (Element disk : virtioDisks(domainElement)) {
+                child(disk, "driver").setAttribute("queues", Integer.toString(diskQueues));
+            }
+        }
+
+        applyHostSide(domainElement, cores);
+    }
+
+    /**
+     * Changes a {@code <domain>} element saved in a snapshot to use the settings of this profile that the guest can't
+     * see. The others have to match already, see {@link #guestMismatch}.
+     *
+     * @param cores From {@link #allocateCores}. Use the same cores for a domain and its snapshots.
+     */
+    public void applyHostSide(Element domainElement, List<Integer> cores) {
+        Document document = domainElement.getOwnerDocument();
+
+        if (hugepages) {
+            Element memoryBacking = child(domainElement, "memoryBacking");
+            child(memoryBacking, "hugepages");
+        }
+
+        if (ioThreads > 0) {
+            child(domainElement, "iothreads").setTextContent(Integer.toString(ioThreads));
+        }
+
+        if (!cores.isEmpty()) {
+            // Replace any old pinning
+            removeChildren(domainElement, "cputune");
+            Element cputune = child(domainElement, "cputune");
+
+            for (int vcpu = 0; vcpu < cores.size(); vcpu++) {
+                Element vcpuPin = document.createElement("vcpupin");
+                vcpuPin.setAttribute("vcpu", Integer.toString(vcpu));
+                vcpuPin.setAttribute("cpuset", Integer.toString(cores.get(vcpu)));
+                cputune.appendChild(vcpuPin);
+            }
+
+            Element emulatorPin = document.createElement("emulatorpin");
+            emulatorPin.setAttribute("cpuset", Integer.toString(HOUSEKEEPING_CORE));
+            cputune.appendChild(emulatorPin);
+
+            for (int ioThread = 1; ioThread <= ioThreads; ioThread++) {
+                Element ioThreadPin = document.createElement("iothreadpin");
+                ioThreadPin.setAttribute("iothread", Integer.toString(ioThread));
+                ioThreadPin.setAttribute("cpuset", Integer.toString(HOUSEKEEPING_CORE));
+                cputune.appendChild(ioThreadPin);
+            }
+        }
+
+        if (ioThreads > 0) {
+            List<Element> disks = virtioDisks(domainElement);
+            for (int i = 0; i < disks.size(); i++) {
+                // Spread disks between the I/O threads
+                child(disks.get(i), "driver").setAttribute("iothread", Integer.toString(i % ioThreads + 1));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a {@code <domain>} element saved in a snapshot already has the settings of this profile that the
+     * guest can see.
+     *
+     * @return What doesn't match, or null if everything does.
+     */
+    public String guestMismatch(Element domainElement) {
+        List<String> problems = new ArrayList<>();
+
+        if (hostPassthrough) {
+            Node cpu = domainElement.getElementsByTagName("cpu").item(0);
+            String mode = cpu == null ? "" : ((Element) cpu).getAttribute("mode");
+            if (!mode.equals("host-passthrough")) problems.add("CPU mode is " + (mode.isEmpty() ? "the default" : mode));
+        }
+
+        if (diskQueues > 0) {
+            for (Element disk : virtioDisks(domainElement)) {
+                Node driver = disk.getElementsByTagName("driver").item(0);
+                String queues = driver == null ? "" : ((Element) driver).getAttribute("queues");
+                if (!queues.equals(Integer.toString(diskQueues))) {
+                    problems.add("disk has " + (queues.isEmpty() ? "the default number of" : queues) + " queues");
+                }
+            }
+        }
+
+        return problems.isEmpty() ? null : String.join(", ", problems);
+    }
+
+    private static List<Element> virtioDisks(Element domainElement) {
+        Element devices = (Element) domainElement.getElementsByTagName("devices").item(0);
+        NodeList disks = devices.getElementsByTagName("disk");
+
+        List<Element> virtioDisks = new ArrayList<>();
+        for (int i = 0; i < disks.getLength(); i++) {
+            Element disk = (Element) disks.item(i);
+            Element target = (Element) disk.getElementsByTagName("target").item(0);
+            if (target != null && target.getAttribute("bus").equals("virtio")) virtioDisks.add(disk);
+        }
+        return virtioDisks;
+    }
+
+    // Finds the first direct child with this name, or adds one
+    private static Element child(Element parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element element && element.getTagName().equals(name)) return element;
+        }
+        Element element = parent.getOwnerDocument().createElement(name);
+        parent.appendChild(element);
+        return element;
+    }
+
+    private static void removeChildren(Element parent, String name) {
+        Node node = parent.getFirstChild();
+        while (node != null) {
+            Node next = node.getNextSibling();
+            if (node instanceof Element element && element.getTagName().equals(name)) parent.removeChild(element);
+            node = next;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@code qemu-img} https://www.qemu.org/docs/master/tools/qemu-img.html
+ */
+class QemuImg {
+    private QemuImg() {
+
+    }
+
+    /**
+     * Creates a qcow2 image that starts out the same as the backing image, and stores changes to it separately.
+     *
+     * @param options Extra {@code -o} options, or an empty string.
+     */
+    static void createOverlay(Path image, Path backingImage, String options) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+            "create", "-q",
+            "-f", "qcow2",
+            "-b", backingImage.toAbsolutePath().toString(), "-F", "qcow2"
+        ));
+        if (!options.isEmpty()) {
+            command.add("-o");
+            command.add(options);
+        }
+        command.add(image.toString());
+        run(command, "create overlay for " + image);
+    }
+
+    /**
+     * Changes options of an existing qcow2 image. The image must not be in use.
+     */
+    static void amend(Path image, String options) throws IOException {
+        run(List.of("amend", "-f", "qcow2", "-o", options, image.toString()), "amend " + image);
+    }
+
+    private static void run(List<String> arguments, String description) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("qemu-img");
+        command.addAll(arguments);
+
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .start();
+        String output = new String(process.getInputStream().readAllBytes()).trim();
+
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while trying to " + description);
+        }
+        if (exitCode != 0) {
+            throw new IOException("Could not " + description + " (exit code " + exitCode + "): " + output);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The header of a file made by {@link org.libvirt.Domain#save(String)}, which holds the domain XML that
+ * {@link org.libvirt.Connect#restore(String)} brings the domain back with. libvirt-java doesn't have
+ * virDomainRestoreFlags or virDomainSaveImageDefineXML, so changing that XML means rewriting the header ourselves.
+ * <p>
+ * The XML and the cookie are followed by padding, so they can be replaced with something a bit longer.
+ */
+record SaveImage(ByteBuffer header, String xml, String cookie, long dataEnd) {
+    // Save file header https://gitlab.com/libvirt/libvirt/-/blob/master/src/qemu/qemu_saveimage.h
+    //  magic[16], version, data_len, was_running, compressed, cookieOffset, unused[15]
+    private static final byte[] SAVE_MAGIC = "LibvirtQemudSave".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = SAVE_MAGIC.length + 20 * Integer.BYTES;
+    private static final int DATA_LENGTH_OFFSET = SAVE_MAGIC.length + Integer.BYTES;
+    private static final int COOKIE_OFFSET_OFFSET = SAVE_MAGIC.length + 4 * Integer.BYTES;
+
+    static SaveImage read(Path saveFile) throws IOException {
+        try (FileChannel input = FileChannel.open(saveFile)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+            readFully(input, header, 0);
+            header.flip();
+
+            byte[] magic = new byte[SAVE_MAGIC.length];
+            header.get(0, magic);
+            if (!Arrays.equals(magic, SAVE_MAGIC)) {
+                throw new IOException(saveFile + " is not a libvirt save file");
+            }
+
+            int dataLength = header.getInt(DATA_LENGTH_OFFSET);
+            int cookieOffset = header.getInt(COOKIE_OFFSET_OFFSET);
+
+            ByteBuffer data = ByteBuffer.allocate(dataLength);
+            readFully(input, data, HEADER_BYTES);
+            byte[] bytes = data.array();
+
+            String xml = readString(bytes, 0);
+            String cookie = cookieOffset == 0 ? null : readString(bytes, cookieOffset);
+            return new SaveImage(header, xml, cookie, HEADER_BYTES + (long) dataLength);
+        }
+    }
+
+    /**
+     * @return A new copy of the domain XML. DOM isn't thread safe, so each thread should parse its own copy.
+     */
+    Element parseXML() throws IOException {
+        try {
+            return DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml)))
+                .getDocumentElement();
+        } catch (ParserConfigurationException | SAXException exception) {
+            throw new IOException("Could not read domain XML from save file", exception);
+        }
+    }
+
+    static String writeXML(Element domainXML) throws TransformerException {
+        Transformer xmlWriter = TransformerFactory.newInstance().newTransformer();
+        xmlWriter.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter xmlOutput = new StringWriter();
+        xmlWriter.transform(new DOMSource(domainXML), new StreamResult(xmlOutput));
+        return xmlOutput.toString();
+    }
+
+    /**
+     * Points the domain's first disk at the given image, and removes the backing chain libvirt recorded when the file
+     * was saved. Without a {@code <backingStore>}, libvirt probes the chain from the image again when restoring.
+     */
+    static void setImage(Element domainXML, Path image) {
+        Element devices = (Element) domainXML.getElementsByTagName("devices").item(0);
+        Element disk = (Element) devices.getElementsByTagName("disk").item(0);
+        Element source = (Element) disk.getElementsByTagName("source").item(0);
+        source.setAttribute("file", image.toString());
+
+        NodeList backingStores = disk.getElementsByTagName("backingStore");
+        // NodeLists are live, so remove from the end
+        for (int i = backingStores.getLength() - 1; i >= 0; i--) {
+            Node node = backingStores.item(i);
+            node.getParentNode().removeChild(node);
+        }
+    }
+
+    /**
+     * Changes the save file in place so restoring it uses the given image, see {@link #setImage(Element, Path)}.
+     */
+    void setImage(Path saveFile, Path image) throws IOException {
+        Element domainXML = parseXML();
+        setImage(domainXML, image);
+        try {
+            rewrite(saveFile, writeXML(domainXML), cookie);
+        } catch (TransformerException exception) {
+            throw new IOException("Could not write domain XML to save file", exception);
+        }
+    }
+
+    /**
+     * Replaces the XML and cookie in the save file's header, leaving the rest of the file alone.
+     */
+    void rewrite(Path saveFile, String newXML, String newCookie) throws IOException {
+        try (FileChannel output = FileChannel.open(saveFile, StandardOpenOption.WRITE)) {
+            writeHeader(output, newXML, newCookie);
+        }
+    }
+
+    /**
+     * Writes a copy of the save file with a different XML and cookie in its header.
+     */
+    void copy(Path original, String newXML, String newCookie, Path destination) throws IOException {
+        try (
+            FileChannel input = FileChannel.open(original);
+            FileChannel output = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+        ) {
+            writeHeader(output, newXML, newCookie);
+            output.position(dataEnd);
+
+            // The rest is QEMU's copy of the VM's memory and device state, which stays the same
+            long position = dataEnd;
+            long size = input.size();
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+        }
+    }
+
+    private void writeHeader(FileChannel output, String newXML, String newCookie) throws IOException {
+        byte[] xmlBytes = (newXML + "\0").getBytes(StandardCharsets.UTF_8);
+        byte[] cookieBytes = newCookie == null ? new byte[0] : (newCookie + "\0").getBytes(StandardCharsets.UTF_8);
+
+        int dataLength = (int) (dataEnd - HEADER_BYTES);
+        if (xmlBytes.length + cookieBytes.length > dataLength) {
+            throw new IOException("New domain XML does not fit in the save file header");
+        }
+
+        // Clones are written at the same time, so each needs its own copy of the header
+        ByteBuffer newHeader = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+        newHeader.put(header.duplicate().rewind());
+        newHeader.putInt(COOKIE_OFFSET_OFFSET, newCookie == null ? 0 : xmlBytes.length);
+        newHeader.rewind();
+
+        ByteBuffer data = ByteBuffer.allocate(dataLength);
+        data.put(xmlBytes).put(cookieBytes);
+        data.rewind();
+
+        long position = 0;
+        while (newHeader.hasRemaining()) position += output.write(newHeader, position);
+        while (data.hasRemaining()) position += output.write(data, position);
+    }
+
+    private static void readFully(FileChannel input, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = input.read(buffer, position);
+            if (read == -1) throw new IOException("Unexpected end of save file");
+            position += read;
+        }
+    }
+
+    private static String readString(byte[] bytes, int offset) {
+        int end = offset;
+        while (end < bytes.length && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}
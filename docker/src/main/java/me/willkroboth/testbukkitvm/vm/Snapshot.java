@@ -4,7 +4,8 @@ public enum Snapshot {
     LOGIN("Login", "Logged into machine"),
     SETUP("Setup", "Finished OS configuration"),
     BASE("Base", "Added files and dependencies needed for all machines"),
-    SERVER("Server", "Created files for Minecraft server");
+    SERVER("Server", "Created files for Minecraft server"),
+    WARM("Warm", "Server running with its JIT warmed up");
 
     private final String name;
     private final String description;
@@ -0,0 +1,225 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.libvirt.LibvirtException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the snapshots made for a VM on top of the fixed {@link Snapshot}s, like points in the server startup
+ * or the setup for a certain test. Snapshots are made when they are first needed, and the least recently used ones are
+ * deleted when they take up too much space.
+ * <p>
+ * Snapshots in the catalog are {@link ExternalSnapshot}s, so each one builds on the snapshot the VM was in when it was
+ * taken (its parent). Only leaves (snapshots that aren't the parent of another snapshot) can be deleted, since the
+ * disk of a child snapshot is stored as changes on top of its parent's disk.
+ * <p>
+ * The catalog is saved to a file after every change, so it still knows about the snapshots (and how long they took
+ * to make and restore) when the program starts again.
+ */
+public class SnapshotCatalog {
+    /**
+     * @param parent        The snapshot the VM was restored to before this one was taken.
+     * @param size          Bytes of memory and disk used by this snapshot.
+     * @param createNanos   How long it took to get to this snapshot from its parent, including the setup.
+     * @param restoreNanos  Average time taken to restore this snapshot, or 0 if it hasn't been restored yet.
+     * @param restores      How many times this snapshot has been restored.
+     * @param lastUsedMillis When this snapshot was last created or restored.
+     */
+    public record Entry(String name, String parent, long size, long createNanos, long restoreNanos, int restores, long lastUsedMillis) {
+        private Entry restored(long nanos) {
+            long average = (restoreNanos * restores + nanos) / (restores + 1);
+            return new Entry(name, parent, size, createNanos, average, restores + 1, System.currentTimeMillis());
+        }
+
+        private String toLine() {
+            return String.join("\t", name, parent, Long.toString(size), Long.toString(createNanos),
+                Long.toString(restoreNanos), Integer.toString(restores), Long.toString(lastUsedMillis));
+        }
+
+        private static Entry fromLine(String line) {
+            String[] parts = line.split("\t");
+            return new Entry(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                Long.parseLong(parts[4]), Integer.parseInt(parts[5]), Long.parseLong(parts[6]));
+        }
+    }
+
+    @FunctionalInterface
+    public interface Setup {
+        /**
+         * Gets the VM to the state that should be saved in a snapshot. The VM is running when this is called.
+         */
+        void run(VMManager manager) throws Exception;
+    }
+
+    private final VMManager manager;
+    private final Path indexFile;
+    private final long budgetBytes;
+
+    // Keeps insertion order, so the file stays in the order snapshots were made
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    // The snapshot the VM was last restored to or saved as, which is the parent of the next snapshot
+    private String current;
+
+    /**
+     * @param indexFile   Where to save the catalog. Loaded if it already exists.
+     * @param budgetBytes How much space snapshots in the catalog may use before old ones are deleted.
+     * @param current     The snapshot the VM is in right now, e.g. {@link Snapshot#SERVER} right after restoring it.
+     */
+    public SnapshotCatalog(VMManager manager, Path indexFile, long budgetBytes, String current) throws IOException {
+        this.manager = manager;
+        this.indexFile = indexFile;
+        this.budgetBytes = budgetBytes;
+        this.current = current;
+
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile)) {
+                if (line.isBlank()) continue;
+                Entry entry = Entry.fromLine(line);
+
+                // Memory is kept on a tmpfs, so the snapshot is gone if the host restarted
+                if (manager.externalSnapshot(entry.name()).exists()) {
+                    entries.put(entry.name(), entry);
+                } else {
+                    System.out.println("Snapshot " + entry.name() + " for " + manager.domainName() + " is missing, removing it from the catalog");
+                }
+            }
+            save();
+        }
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Collection<Entry> entries() {
+        return List.copyOf(entries.values());
+    }
+
+    public String current() {
+        return current;
+    }
+
+    public long totalSize() {
+        return entries.values().stream().mapToLong(Entry::size).sum();
+    }
+
+    /**
+     * Restores a snapshot, which can be in the catalog or be one of the snapshots the VM already had.
+     */
+    public void restore(String name) throws LibvirtException, IOException {
+        long startTime = System.nanoTime();
+        manager.restoreSnapshot(name);
+        long time = System.nanoTime() - startTime;
+
+        current = name;
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entries.put(name, entry.restored(time));
+            save();
+        }
+    }
+
+    /**
+     * Restores the snapshot with this name, making it first if it isn't in the catalog. To make it, the parent is
+     * restored and resumed, the setup is run, then the VM is paused and saved. Either way, the VM is left paused in the
+     * snapshot's state, as if it was just restored.
+     */
+    public void prepare(String name, String parent, Setup setup) throws Exception {
+        if (entries.containsKey(name)) {
+            restore(name);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        restore(parent);
+        manager.domain().resume();
+        manager.waitForGuestAgent();
+        setup.run(manager);
+        manager.domain().suspend();
+
+        create(name, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Saves the VM's current state as a new snapshot, whose parent is the snapshot it was last restored to.
+     */
+    public void create(String name) throws LibvirtException, IOException {
+        create(name, 0);
+    }
+
+    private void create(String name, long setupNanos) throws LibvirtException, IOException {
+        if (entries.containsKey(name)) throw new IllegalStateException("Snapshot " + name + " is already in the catalog");
+
+        long startTime = System.nanoTime();
+        ExternalSnapshot snapshot = manager.createExternalSnapshot(name);
+        long createNanos = setupNanos + System.nanoTime() - startTime;
+
+        entries.put(name, new Entry(name, current, snapshot.size(), createNanos, 0, 0, System.currentTimeMillis()));
+        current = name;
+        save();
+
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used leaf snapshots until the catalog fits in the budget. The VM's current snapshot is
+     * never deleted, since the VM's disk is built on top of it.
+     *
+     * @return The deleted snapshots.
+     */
+    public List<Entry> evict() throws IOException {
+        List<Entry> evicted = new ArrayList<>();
+
+        long totalSize = totalSize();
+        while (totalSize > budgetBytes) {
+            Entry victim = entries.values().stream()
+                .filter(entry -> !entry.name().equals(current))
+                .filter(this::isLeaf)
+                .min(Comparator.comparingLong(Entry::lastUsedMillis))
+                .orElse(null);
+            if (victim == null) break;
+
+            System.out.println("Evicting snapshot " + victim.name() + " for " + manager.domainName() + " (" + victim.size() / 1048576 + " MiB)");
+            manager.externalSnapshot(victim.name()).delete();
+            entries.remove(victim.name());
+            evicted.add(victim);
+            totalSize -= victim.size();
+        }
+
+        if (!evicted.isEmpty()) save();
+        return evicted;
+    }
+
+    private boolean isLeaf(Entry entry) {
+        for (Entry other : entries.values()) {
+            if (entry.name().equals(other.parent())) return false;
+        }
+        return true;
+    }
+
+    private void save() throws IOException {
+        StringBuilder index = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            index.append(entry.toLine()).append('\n');
+        }
+
+        // Write to a temporary file first, so a crash can't leave half an index
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp");
+        Files.writeString(temp, index);
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,231 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.LibvirtException;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts many VMs from one {@link ExternalSnapshot}, so one slow server start can be used by many tests at the same
+ * time. Every clone uses the snapshot's disk as a read-only backing file with its own overlay on top, and is restored
+ * from the snapshot's memory with its own name, UUID and MAC address (like {@link VMCreator} does for new VMs).
+ * <p>
+ * libvirt won't restore a save file with a different UUID or MAC address (it checks that the hardware didn't change),
+ * so each clone gets its own copy of the save file with the domain XML in its header changed. The copy is deleted as
+ * soon as the clone is running. Each copy is as big as the VM's memory and goes on the same tmpfs as the snapshot, so
+ * only as many copies as fit in the free space there are written at once. Clones are transient domains, so they
+ * disappear once they are destroyed.
+ * <p>
+ * The new MAC address in the XML isn't enough by itself: the NIC's saved state (and the guest's network setup) still
+ * has the original VM's MAC and IP address, so every clone would use the same ones on the bridge. Each clone is
+ * briefly resumed to run {@code resetNetworking.sh} with its new MAC address, which sets it on the NIC and gets a new
+ * address from DHCP, then paused again.
+ */
+public class SnapshotFanOut {
+    private SnapshotFanOut() {
+
+    }
+
+    /**
+     * @param snapshot  The snapshot to clone. The source VM can keep running, since the snapshot's files are never
+     *                  written to.
+     * @param namePrefix Clones are named {@code <namePrefix>-<i>}.
+     * @return Managers for the clones, which are left paused in the snapshot's state (apart from their networking), like
+     * after restoring it.
+     */
+    public static List<VMManager> fanOut(Connect connect, ExternalSnapshot snapshot, int count, String namePrefix) throws IOException, LibvirtException {
+        return fanOut(connect, snapshot, count, namePrefix, StorageProfile.DEFAULT);
+    }
+
+    /**
+     * @param storageProfile Settings for the clones' overlays.
+     */
+    public static List<VMManager> fanOut(Connect connect, ExternalSnapshot snapshot, int count, String namePrefix, StorageProfile storageProfile) throws IOException, LibvirtException {
+        if (!snapshot.exists()) throw new IllegalStateException("External snapshot " + snapshot.name() + " does not exist");
+
+        SaveImage saveImage = SaveImage.read(snapshot.memoryFile());
+        Element domainXML = saveImage.parseXML();
+        String originalName = domainXML.getElementsByTagName("name").item(0).getTextContent();
+        String originalUUID = domainXML.getElementsByTagName("uuid").item(0).getTextContent();
+
+        // Each clone mostly waits on libvirt and disk/memory copies, so they can all start at once
+        //  but the save file copies have to fit on the tmpfs
+        int saveCopies = saveCopyLimit(snapshot, count);
+        Semaphore saveCopyPermits = new Semaphore(saveCopies);
+        System.out.println("Cloning " + snapshot.name() + " from " + originalName + " into " + count + " VMs (" + saveCopies + " at a time)");
+        List<CompletableFuture<VMManager>> clones = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                String cloneName = namePrefix + "-" + i;
+                clones.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return createClone(connect, snapshot, storageProfile, saveImage, saveCopyPermits, cloneName, originalName, originalUUID);
+                    } catch (Exception exception) {
+                        throw new RuntimeException("Could not create clone " + cloneName, exception);
+                    }
+                }, executor));
+            }
+        }
+
+        // Every clone has finished or failed by now, since closing the executor waits for its tasks
+        List<VMManager> managers = new ArrayList<>();
+        Exception failure = null;
+        for (CompletableFuture<VMManager> clone : clones) {
+            try {
+                managers.add(AsyncVMManager.await(clone));
+            } catch (LibvirtException | IOException | RuntimeException exception) {
+                if (failure == null) failure = exception;
+                else failure.addSuppressed(exception);
+            }
+        }
+
+        if (failure != null) {
+            // Don't leave the clones that did start running with nothing to clean them up
+            System.out.println("Could not create every clone, destroying the " + managers.size() + " that started");
+            for (VMManager manager : managers) {
+                try {
+                    destroyClone(manager);
+                } catch (LibvirtException | IOException exception) {
+                    failure.addSuppressed(exception);
+                }
+            }
+            if (failure instanceof LibvirtException libvirtException) throw libvirtException;
+            if (failure instanceof IOException ioException) throw ioException;
+            throw (RuntimeException) failure;
+        }
+
+        System.out.println("Done!");
+        return managers;
+    }
+
+    /**
+     * Destroys a clone made by {@link #fanOut} and deletes its overlay. The snapshot it was made from is not changed.
+     */
+    public static void destroyClone(VMManager clone) throws LibvirtException, IOException {
+        Domain domain = clone.domain();
+        // Transient domains are undefined as soon as they stop
+        if (domain.isActive() == 1) {
+            domain.destroy();
+        }
+        Files.deleteIfExists(clone.imageFile().toPath());
+    }
+
+    private static VMManager createClone(
+        Connect connect, ExternalSnapshot snapshot, StorageProfile storageProfile, SaveImage saveImage,
+        Semaphore saveCopyPermits, String cloneName, String originalName, String originalUUID
+    ) throws IOException, LibvirtException, TransformerException, InterruptedException {
+        // The clone's disk goes next to the snapshot's disk, so the backing file path stays short and simple
+        Path overlay = snapshot.diskFile().resolveSibling(cloneName + ".qcow2");
+        Files.deleteIfExists(overlay);
+        snapshot.createOverlay(overlay, storageProfile);
+
+        String uuid = UUID.randomUUID().toString();
+        String macAddress = randomMacAddress();
+        // DOM isn't thread safe, so each clone parses its own copy of the XML
+        String xml = configureClone(saveImage.parseXML(), cloneName, uuid, macAddress, overlay);
+
+        // The migration cookie also says which domain it belongs to https://libvirt.org/migration.html
+        String cookie = saveImage.cookie() == null ? null : saveImage.cookie()
+            .replace("<name>" + originalName + "</name>", "<name>" + cloneName + "</name>")
+            .replace("<uuid>" + originalUUID + "</uuid>", "<uuid>" + uuid + "</uuid>");
+
+        // Not next to the snapshot's memory, where it would look like another snapshot of the original domain
+        Path cloneSave = ExternalSnapshot.getMemoryDirectory().resolve(cloneName + ".clone.save");
+        saveCopyPermits.acquire();
+        try {
+            saveImage.copy(snapshot.memoryFile(), xml, cookie, cloneSave);
+            connect.restore(cloneSave.toString());
+        } catch (IOException | LibvirtException exception) {
+            // The clone never started, so nothing else will delete its overlay
+            Files.deleteIfExists(overlay);
+            throw exception;
+        } finally {
+            // QEMU has read everything into the clone's memory, so the copy isn't needed anymore
+            Files.deleteIfExists(cloneSave);
+            saveCopyPermits.release();
+        }
+
+        VMManager manager = new VMManager(connect.domainLookupByName(cloneName), overlay.toFile())
+            .setStorageProfile(storageProfile);
+        manager.clonedFrom(snapshot);
+        try {
+            resetNetworking(manager, macAddress);
+        } catch (LibvirtException | RuntimeException exception) {
+            destroyClone(manager);
+            throw exception;
+        }
+        return manager;
+    }
+
+    private static void resetNetworking(VMManager clone, String macAddress) throws LibvirtException {
+        Domain domain = clone.domain();
+        boolean paused = domain.getInfo().state == DomainInfo.DomainState.VIR_DOMAIN_PAUSED;
+        if (paused) domain.resume();
+
+        clone.waitForGuestAgent();
+        GuestExecStatus status = clone.executeCommand("/root/vmFiles/resetNetworking.sh", new String[]{macAddress});
+        if (status.exitCode() != 0) {
+            throw new IllegalStateException("Could not reset networking on " + clone.domainName() + ": " + status.errData());
+        }
+
+        if (paused) domain.suspend();
+    }
+
+    // How many save file copies fit in the memory directory's free space, keeping one copy's worth spare
+    private static int saveCopyLimit(ExternalSnapshot snapshot, int count) throws IOException {
+        long copyBytes = Files.size(snapshot.memoryFile());
+        long freeBytes = Files.getFileStore(ExternalSnapshot.getMemoryDirectory()).getUsableSpace();
+        long copies = freeBytes / Math.max(copyBytes, 1) - 1;
+        return (int) Math.max(1, Math.min(count, copies));
+    }
+
+    private static String configureClone(Element domainXML, String name, String uuid, String macAddress, Path image) throws TransformerException {
+        domainXML.removeAttribute("id");
+        domainXML.getElementsByTagName("name").item(0).setTextContent(name);
+        domainXML.getElementsByTagName("uuid").item(0).setTextContent(uuid);
+
+        Element devices = (Element) domainXML.getElementsByTagName("devices").item(0);
+
+        Element networkElement = (Element) devices.getElementsByTagName("interface").item(0);
+        Element macElement = (Element) networkElement.getElementsByTagName("mac").item(0);
+        macElement.setAttribute("address", macAddress);
+
+        // Point the first disk at the clone's overlay, and let libvirt work out the backing chain again
+        SaveImage.setImage(domainXML, image);
+
+        // The guest agent and data channel sockets are named after the domain, so let libvirt pick new paths
+        NodeList channels = devices.getElementsByTagName("channel");
+        for (int i = 0; i < channels.getLength(); i++) {
+            Element channel = (Element) channels.item(i);
+            if (!channel.getAttribute("type").equals("unix")) continue;
+            Element channelSource = (Element) channel.getElementsByTagName("source").item(0);
+            if (channelSource != null) channelSource.removeAttribute("path");
+        }
+
+        return SaveImage.writeXML(domainXML);
+    }
+
+    private static String randomMacAddress() {
+        // 52:54:00 is the prefix libvirt uses for QEMU VMs
+        byte[] suffix = new byte[3];
+        ThreadLocalRandom.current().nextBytes(suffix);
+        return "52:54:00:" + HexFormat.ofDelimiter(":").formatHex(suffix);
+    }
+}
@@ -0,0 +1,107 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * qcow2 settings for VM images and the overlays made for snapshots and clones.
+ * See https://www.qemu.org/docs/master/system/qemu-block-drivers.html#image-format-qcow2 and
+ * https://github.com/qemu/qemu/blob/master/docs/qcow2-cache.txt for what these do.
+ * <p>
+ * The base image is made by {@code createVM.sh}, which uses the same settings as {@link #TUNED}. Cluster size and
+ * preallocation can only be picked when an image is created, so VMs cloned from an existing base image only get the
+ * settings that can be changed afterward.
+ *
+ * @param clusterBytes        Size of qcow2 clusters, or 0 for QEMU's default (64 KiB). Bigger clusters mean less
+ *                            metadata to update and cache, but copying a bigger block the first time part of it is
+ *                            written in an overlay.
+ * @param lazyRefcounts       Don't write refcount updates right away. Much fewer metadata writes, but the image needs
+ *                            to be repaired if QEMU crashes (which it does by itself when the image is next opened).
+ * @param preallocateMetadata Create all the metadata when the image is created, so it doesn't have to be allocated
+ *                            while the VM is running.
+ * @param metadataCacheBytes  Size of QEMU's L2 and refcount cache for each disk, or 0 for QEMU's default. This should
+ *                            be big enough to cover the whole disk, or QEMU will keep reading metadata from the disk.
+ * @param discard             Pass discard/TRIM from the guest through to the image, and turn written zeros into holes,
+ *                            so deleted files in the guest free space in the image (and in snapshots made after).
+ */
+public record StorageProfile(int clusterBytes, boolean lazyRefcounts, boolean preallocateMetadata, long metadataCacheBytes, boolean discard) {
+    /**
+     * Leaves images and the domain as they are, using QEMU's defaults for anything new.
+     */
+    public static final StorageProfile DEFAULT = new StorageProfile(0, false, false, 0, false);
+    /**
+     * Settings that suit VMs that are reset often.
+     */
+    public static final StorageProfile TUNED = new StorageProfile(524288, true, true, 4194304, true);
+
+    /**
+     * @return Options for {@code qemu-img create -o} when creating a new image from scratch.
+     */
+    public String createOptions() {
+        List<String> options = new ArrayList<>(overlayOptionList());
+        if (preallocateMetadata) options.add("preallocation=metadata");
+        return String.join(",", options);
+    }
+
+    /**
+     * @return Options for {@code qemu-img create -o} when creating an overlay on top of another image. Overlays aren't
+     * preallocated, since most of their clusters are never written and should come from the backing image.
+     */
+    public String overlayOptions() {
+        return String.join(",", overlayOptionList());
+    }
+
+    /**
+     * @return Options for {@code qemu-img amend -o} to change an image that already exists, like a clone of the
+     * base image. Empty if there is nothing to change.
+     */
+    public String amendOptions() {
+        return lazyRefcounts ? "lazy_refcounts=on" : "";
+    }
+
+    private List<String> overlayOptionList() {
+        List<String> options = new ArrayList<>();
+        if (clusterBytes > 0) options.add("cluster_size=" + clusterBytes);
+        if (lazyRefcounts) options.add("lazy_refcounts=on");
+        return options;
+    }
+
+    /**
+     * Sets the driver options of every qcow2 disk in a {@code <domain>} element.
+     */
+    public void apply(Element domainElement) {
+        Element devices = (Element) domainElement.getElementsByTagName("devices").item(0);
+        NodeList disks = devices.getElementsByTagName("disk");
+
+        for (int i = 0; i < disks.getLength(); i++) {
+            Element disk = (Element) disks.item(i);
+            Element driver = (Element) disk.getElementsByTagName("driver").item(0);
+            if (driver == null || !driver.getAttribute("type").equals("qcow2")) continue;
+
+            if (discard) {
+                driver.setAttribute("discard", "unmap");
+                driver.setAttribute("detect_zeroes", "unmap");
+            }
+
+            if (metadataCacheBytes > 0) {
+                // https://libvirt.org/formatdomain.html#hard-drives-floppy-disks-cdroms (metadata_cache)
+                NodeList oldCaches = driver.getElementsByTagName("metadata_cache");
+                for (int j = oldCaches.getLength() - 1; j >= 0; j--) {
+                    Node oldCache = oldCaches.item(j);
+                    oldCache.getParentNode().removeChild(oldCache);
+                }
+
+                Element metadataCache = domainElement.getOwnerDocument().createElement("metadata_cache");
+                Element maxSize = domainElement.getOwnerDocument().createElement("max_size");
+                maxSize.setAttribute("unit", "bytes");
+                maxSize.setTextContent(Long.toString(metadataCacheBytes));
+                metadataCache.appendChild(maxSize);
+                driver.appendChild(metadataCache);
+            }
+        }
+    }
+}
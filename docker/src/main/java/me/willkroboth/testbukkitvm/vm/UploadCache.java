@@ -0,0 +1,136 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the SHA-256 digest of files uploaded to a domain, so uploading the same file again can be skipped.
+ * <p>
+ * Reverting a snapshot also reverts the guest's files, so digests are tracked per snapshot. Taking a snapshot copies
+ * the digests known for the current state, and restoring a snapshot brings back the digests known when it was taken.
+ * <p>
+ * Each snapshot's digests are also written to a file next to the snapshot, in the same format as {@code sha256sum}.
+ * That way a new {@link VMManager} for the same image, or a clone made by {@link SnapshotFanOut}, still knows what
+ * files the snapshot has. The cache is only an optimization, so problems reading or writing those files are just
+ * printed.
+ */
+public class UploadCache {
+    // Local files are shared between VMs (e.g. the same server jar), so only hash them again if they change
+    private record LocalDigest(long size, long lastModified, String digest) {
+    }
+
+    private static final Map<Path, LocalDigest> localDigests = new ConcurrentHashMap<>();
+
+    private final Map<String, Map<Path, String>> snapshotDigests = new HashMap<>();
+    private Map<Path, String> currentDigests = new HashMap<>();
+
+    // Snapshots
+    /**
+     * @param digestsFile Where to keep the digests for this snapshot, or null to only remember them in memory.
+     */
+    public void snapshotCreated(String snapshotName, Path digestsFile) {
+        Map<Path, String> digests = new HashMap<>(currentDigests);
+        snapshotDigests.put(snapshotName, digests);
+        if (digestsFile != null) writeDigests(digestsFile, digests);
+    }
+
+    /**
+     * @param digestsFile Where the digests for this snapshot were kept, or null if they were only kept in memory.
+     */
+    public void snapshotRestored(String snapshotName, Path digestsFile) {
+        Map<Path, String> digests = snapshotDigests.get(snapshotName);
+        if (digests == null && digestsFile != null) {
+            digests = readDigests(digestsFile);
+            snapshotDigests.put(snapshotName, digests);
+        }
+        // If we don't know about this snapshot, we don't know what files it has
+        currentDigests = new HashMap<>(digests == null ? Map.of() : digests);
+    }
+
+    private static void writeDigests(Path digestsFile, Map<Path, String> digests) {
+        List<String> lines = new ArrayList<>(digests.size());
+        for (Map.Entry<Path, String> entry : digests.entrySet()) {
+            lines.add(entry.getValue() + "  " + entry.getKey());
+        }
+
+        try {
+            Files.write(digestsFile, lines);
+        } catch (IOException exception) {
+            System.out.println("Could not save upload digests to " + digestsFile + ": " + exception);
+        }
+    }
+
+    private static Map<Path, String> readDigests(Path digestsFile) {
+        Map<Path, String> digests = new HashMap<>();
+        if (!Files.exists(digestsFile)) return digests;
+
+        try {
+            for (String line : Files.readAllLines(digestsFile)) {
+                // Lines look like `<digest>  <path>`
+                String[] parts = line.split("  ", 2);
+                if (parts.length == 2) digests.put(Path.of(parts[1]), parts[0]);
+            }
+        } catch (IOException exception) {
+            System.out.println("Could not load upload digests from " + digestsFile + ": " + exception);
+            digests.clear();
+        }
+        return digests;
+    }
+
+    // Remote files
+    public String getRemoteDigest(Path remotePath) {
+        return currentDigests.get(remotePath);
+    }
+
+    public void recordUpload(Path remotePath, String digest) {
+        currentDigests.put(remotePath, digest);
+    }
+
+    /**
+     * Forgets any digests for files at or inside the given path, since they might have been overwritten.
+     */
+    public void invalidate(Path remotePath) {
+        currentDigests.keySet().removeIf(path -> path.startsWith(remotePath));
+    }
+
+    // Local files
+    public static String digest(File localFile) throws IOException {
+        Path path = localFile.toPath().toAbsolutePath().normalize();
+        long size = Files.size(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+
+        LocalDigest cached = localDigests.get(path);
+        if (cached != null && cached.size() == size && cached.lastModified() == lastModified) {
+            return cached.digest();
+        }
+
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            // Every Java implementation is required to support SHA-256
+            throw new IllegalStateException(exception);
+        }
+
+        try (InputStream input = new DigestInputStream(Files.newInputStream(path), messageDigest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+        String digest = HexFormat.of().formatHex(messageDigest.digest());
+
+        localDigests.put(path, new LocalDigest(size, lastModified, digest));
+        return digest;
+    }
+}
@@ -1,9 +1,11 @@
 package me.willkroboth.testbukkitvm.vm;
 
+import me.willkroboth.testbukkitvm.ParallelZipExtractor;
 import me.willkroboth.testbukkitvm.Resource;
-import org.apache.commons.io.IOUtils;
+import me.willkroboth.testbukkitvm.chunks.ChunkStore;
 import org.libvirt.Connect;
 import org.libvirt.Domain;
+import org.libvirt.Error.ErrorNumber;
 import org.libvirt.LibvirtException;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -21,40 +23,87 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipFile;
+import java.util.stream.Stream;
 
 public class VMCreator {
     private static final String BASE_STORAGE = "vmData";
     private static final String VM_STORAGE = "vms";
+    /**
+     * Folder of server jars in the storage directory. This is shared with the VMs read-only, using this as the 9p
+     * mount tag (see {@code copyServerVersion.sh}).
+     */
+    public static final String SERVER_VERSIONS = "serverVersions";
 
     public static class XML {
         public static final String NAME = "{VM_NAME}";
         public static final String IMAGE = "{VM_IMAGE}";
         public static final String OS = "{VM_OS}";
+        public static final String SERVER_VERSIONS = "{VM_SERVER_VERSIONS}";
 
         public static final String UUID = "{VM_UUID}";
         public static final String MAC_ADDRESS = "{VM_MAC_ADDRESS}";
     }
 
+    public enum CloneMode {
+        /**
+         * Copy-on-write copy of the base image, so creating a VM is almost instant and the image only takes up space
+         * for the blocks the VM changes. This needs a filesystem that supports reflinks (e.g. Btrfs or XFS), otherwise
+         * the image is copied normally.
+         */
+        LINKED,
+        /**
+         * Independent copy of the base image.
+         */
+        FULL
+    }
+
     private final Connect connect;
 
     private final File vmDirectory;
+    private final File serverVersions;
 
     private final String baseXML;
     private final String[] snapshotXMLs;
     private final Path baseImage;
     private final String baseOSLocation;
 
-    public static VMCreator setupFromZip(Connect connect, File storageDirectory, ZipFile resourcesZip) throws IOException, ParserConfigurationException, SAXException, TransformerException {
+    private PerformanceProfile performanceProfile = PerformanceProfile.DEFAULT;
+    private StorageProfile storageProfile = StorageProfile.DEFAULT;
+
+    public static VMCreator setupFromZip(Connect connect, File storageDirectory, File resourcesZip) throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        Path baseStorage = setupStorage(storageDirectory);
+
         // Unzip resources
-        Map<String, InputStream> resources = Resource.readFromZip(resourcesZip);
+        //  The image and os are big, so they're unpacked in parallel, and the image stays sparse
+        ParallelZipExtractor.extract(resourcesZip, Map.of(
+            Resource.CONFIG, baseStorage.resolve(Resource.CONFIG),
+            Resource.SNAPSHOTS, baseStorage.resolve(Resource.SNAPSHOTS),
+            Resource.IMAGE, baseStorage.resolve(Resource.IMAGE),
+            Resource.OS, baseStorage.resolve(Resource.OS)
+        ));
+        System.out.println("Done!");
 
-        InputStream baseXML = resources.get(Resource.CONFIG);
-        InputStream snapshotXML = resources.get(Resource.SNAPSHOTS);
-        InputStream baseImage = resources.get(Resource.IMAGE);
-        InputStream baseOS = resources.get(Resource.OS);
+        return new VMCreator(connect, storageDirectory);
+    }
+
+    /**
+     * Sets up the base VM from resources stored by {@link VMExporter#exportVM(ChunkStore, String)}.
+     */
+    public static VMCreator setupFromChunkStore(Connect connect, File storageDirectory, ChunkStore store, String exportName) throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        Path baseStorage = setupStorage(storageDirectory);
+
+        for (String resource : new String[]{Resource.CONFIG, Resource.SNAPSHOTS, Resource.IMAGE, Resource.OS}) {
+            System.out.println("Restoring " + resource);
+            store.restore(VMExporter.artifactName(exportName, resource), baseStorage.resolve(resource));
+        }
+        System.out.println("Done!");
+
+        return new VMCreator(connect, storageDirectory);
+    }
 
+    private static Path setupStorage(File storageDirectory) throws IOException {
         // Setup base storage directory
         Path baseStorage = storageDirectory.toPath().resolve(BASE_STORAGE);
         File baseStorageFile = baseStorage.toFile();
@@ -68,24 +117,14 @@ public class VMCreator {
             throw new NoSuchFileException("Could not create storage directory <" + vmStorage + ">");
         }
 
-        // Unzip resources
-        System.out.println("Unpacking config.xml");
-        IOUtils.copy(baseXML, Files.newOutputStream(baseStorage.resolve(Resource.CONFIG)));
-        System.out.println("Unpacking snapshots.xml");
-        IOUtils.copy(snapshotXML, Files.newOutputStream(baseStorage.resolve(Resource.SNAPSHOTS)));
-        System.out.println("Unpacking image.qcow2");
-        IOUtils.copy(baseImage, Files.newOutputStream(baseStorage.resolve(Resource.IMAGE)));
-        System.out.println("Unpacking os.iso");
-        IOUtils.copy(baseOS, Files.newOutputStream(baseStorage.resolve(Resource.OS)));
-        System.out.println("Done!");
-
-        return new VMCreator(connect, storageDirectory);
+        return baseStorage;
     }
 
     public VMCreator(Connect connect, File storageDirectory) throws IOException, ParserConfigurationException, SAXException, TransformerException {
         this.connect = connect;
 
         this.vmDirectory = new File(storageDirectory, VM_STORAGE);
+        this.serverVersions = new File(storageDirectory, SERVER_VERSIONS).getAbsoluteFile();
 
         // Read base files
         Path baseStorage = storageDirectory.toPath().resolve(BASE_STORAGE);
@@ -114,17 +153,62 @@ public class VMCreator {
         }
     }
 
-    public VMManager createVM(String vmName) throws IOException, LibvirtException, ParserConfigurationException, SAXException {
+    /**
+     * @param profile How new VMs should use the host's hardware.
+     */
+    public VMCreator setPerformanceProfile(PerformanceProfile profile) {
+        this.performanceProfile = profile;
+        return this;
+    }
+
+    /**
+     * @param profile qcow2 settings for new VMs and their snapshots.
+     */
+    public VMCreator setStorageProfile(StorageProfile profile) {
+        this.storageProfile = profile;
+        return this;
+    }
+
+    public VMManager createVM(String vmName) throws IOException, LibvirtException, ParserConfigurationException, SAXException, TransformerException {
+        return createVM(vmName, CloneMode.LINKED);
+    }
+
+    public VMManager createVM(String vmName, CloneMode cloneMode) throws IOException, LibvirtException, ParserConfigurationException, SAXException, TransformerException {
+        checkGuestSettings();
+
         // Create copy of image
         File vmImage = new File(vmDirectory, vmName + ".qcow2");
+        removeOldVM(vmName, vmImage);
         System.out.println("Creating image for " + vmName);
-        Files.copy(baseImage, vmImage.toPath());
+        copyImage(vmImage.toPath(), cloneMode);
+        if (!storageProfile.amendOptions().isEmpty()) {
+            QemuImg.amend(vmImage.toPath(), storageProfile.amendOptions());
+        }
 
         // Configure xml
         String vmXML = baseXML
             .replace(XML.NAME, vmName)
             .replace(XML.IMAGE, vmImage.getPath())
-            .replace(XML.OS, baseOSLocation);
+            .replace(XML.OS, baseOSLocation)
+            .replace(XML.SERVER_VERSIONS, serverVersions.getPath());
+
+        // Apply performance and storage settings
+        //  The snapshots need the same settings, or reverting them would put the old settings back
+        //  Only settings the guest can't see are changed in the snapshots though, see checkGuestSettings
+        boolean applyProfiles = !performanceProfile.equals(PerformanceProfile.DEFAULT) || !storageProfile.equals(StorageProfile.DEFAULT);
+        List<Integer> cores = List.of();
+        if (applyProfiles) {
+            Element vmConfig = parseXML(vmXML);
+            cores = performanceProfile.allocateCores(PerformanceProfile.vcpuCount(vmConfig));
+            performanceProfile.apply(vmConfig, cores);
+            storageProfile.apply(vmConfig);
+            vmXML = writeXML(vmConfig);
+        }
+
+        // QEMU won't start the VM if the shared folder is missing
+        if (!serverVersions.isDirectory() && !serverVersions.mkdirs()) {
+            throw new NoSuchFileException("Could not create storage directory <" + serverVersions + ">");
+        }
 
         // Load xml
         System.out.println("Defining domain for " + vmName);
@@ -150,15 +234,124 @@ public class VMCreator {
                 .replace(XML.NAME, vmName)
                 .replace(XML.IMAGE, vmImage.getPath())
                 .replace(XML.OS, baseOSLocation)
+                .replace(XML.SERVER_VERSIONS, serverVersions.getPath())
                 // Make sure snapshots have same configuration as main machine
                 .replace(XML.UUID, uuid)
                 .replace(XML.MAC_ADDRESS, macAddress);
 
+            if (applyProfiles) {
+                Element snapshotConfig = parseXML(snapShotXML);
+                for (String domainTag : new String[]{"domain", "inactiveDomain"}) {
+                    Element domainElement = (Element) snapshotConfig.getElementsByTagName(domainTag).item(0);
+                    if (domainElement == null) continue;
+                    performanceProfile.applyHostSide(domainElement, cores);
+                    storageProfile.apply(domainElement);
+                }
+                snapShotXML = writeXML(snapshotConfig);
+            }
+
             domain.snapshotCreateXML(snapShotXML, Domain.SnapshotCreateFlags.REDEFINE);
         }
 
         System.out.println("Done!");
-        return new VMManager(domain, vmImage);
+        return new VMManager(domain, vmImage)
+            .setStorageProfile(storageProfile);
+    }
+
+    /**
+     * Makes sure the base VM's snapshots were taken with the performance profile's settings that the guest can see.
+     * Their memory and device state was saved with the hardware the base VM had then, so restoring them on different
+     * hardware isn't safe.
+     */
+    private void checkGuestSettings() throws ParserConfigurationException, IOException, SAXException {
+        if (!performanceProfile.changesGuest()) return;
+
+        for (String snapshot : snapshotXMLs) {
+            Element snapshotConfig = parseXML(snapshot);
+            String name = snapshotConfig.getElementsByTagName("name").item(0).getTextContent();
+            Element domainElement = (Element) snapshotConfig.getElementsByTagName("domain").item(0);
+            if (domainElement == null) continue;
+
+            String mismatch = performanceProfile.guestMismatch(domainElement);
+            if (mismatch != null) {
+                throw new IllegalStateException("Snapshot " + name + " was not taken with " + performanceProfile +
+                    " (" + mismatch + "). Take the base VM's snapshots again with these settings, or use a profile " +
+                    "that only changes host settings.");
+            }
+        }
+    }
+
+    /**
+     * Removes everything left over from an older VM with the same name. Otherwise its external snapshot files would
+     * still be there, and taking those snapshots again on the new VM would fail after all the work of setting it up.
+     */
+    private void removeOldVM(String vmName, File vmImage) throws LibvirtException, IOException {
+        Domain oldDomain;
+        try {
+            oldDomain = connect.domainLookupByName(vmName);
+        } catch (LibvirtException exception) {
+            if (exception.getError().getCode() != ErrorNumber.VIR_ERR_NO_DOMAIN) throw exception;
+            oldDomain = null;
+        }
+        if (oldDomain != null) {
+            System.out.println("Removing old VM " + vmName);
+            new VMManager(oldDomain, vmImage).destroy();
+        }
+
+        // External snapshot disks outlive their memory files (e.g. after the host restarts), so the old domain might
+        //  not know about all of them
+        Path memoryDirectory = ExternalSnapshot.getMemoryDirectory().resolve(vmName);
+        for (Path directory : new Path[]{vmDirectory.toPath(), memoryDirectory}) {
+            if (!Files.isDirectory(directory)) continue;
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    String fileName = file.getFileName().toString();
+                    if (directory.equals(memoryDirectory) || fileName.startsWith(vmName + ".")) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Element parseXML(String xml) throws ParserConfigurationException, IOException, SAXException {
+        return DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(new InputSource(new StringReader(xml)))
+            .getDocumentElement();
+    }
+
+    private static String writeXML(Element element) throws TransformerException {
+        StringWriter xmlResult = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(element), new StreamResult(xmlResult));
+        return xmlResult.toString();
+    }
+
+    private void copyImage(Path vmImage, CloneMode cloneMode) throws IOException {
+        if (cloneMode == CloneMode.LINKED) {
+            // We can't use a qcow2 overlay backed by the base image, since the snapshots are stored inside the base
+            //  image (with their memory), and QEMU only looks for snapshots in the top image when reverting.
+            //  A reflink shares the base image's blocks instead, but the copy still has all the snapshots.
+            //  Java can't make reflinks itself, so cp does it https://man7.org/linux/man-pages/man1/cp.1.html
+            Process copy = new ProcessBuilder("cp", "--reflink=always", baseImage.toString(), vmImage.toString())
+                .redirectErrorStream(true)
+                .start();
+            String output = new String(copy.getInputStream().readAllBytes()).trim();
+
+            int exitCode;
+            try {
+                exitCode = copy.waitFor();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while copying image");
+            }
+            if (exitCode == 0) return;
+
+            System.out.println("Could not create linked copy of image, copying it instead: " + output);
+            Files.deleteIfExists(vmImage);
+        }
+
+        Files.copy(baseImage, vmImage);
     }
 
     public VMManager lookUpVM(String vmName) throws FileNotFoundException, LibvirtException {
@@ -172,6 +365,7 @@ public class VMCreator {
         // Lookup vm
         Domain domain = connect.domainLookupByName(vmName);
 
-        return new VMManager(domain, vmImage);
+        return new VMManager(domain, vmImage)
+            .setStorageProfile(storageProfile);
     }
 }
@@ -1,7 +1,8 @@
 package me.willkroboth.testbukkitvm.vm;
 
+import me.willkroboth.testbukkitvm.ParallelZipWriter;
 import me.willkroboth.testbukkitvm.Resource;
-import org.apache.commons.io.IOUtils;
+import me.willkroboth.testbukkitvm.chunks.ChunkStore;
 import org.libvirt.Domain;
 import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
@@ -21,23 +22,67 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
 
 public class VMExporter {
     private final Domain domain;
 
+    // The ISO is already compressed, so compressing it again just wastes time
+    private Set<String> storedResources = Set.of(Resource.OS);
+
     public VMExporter(Domain domain) {
         this.domain = domain;
     }
 
+    /**
+     * @param resourceNames Resources to put in the zip without compressing them, like {@link Resource#OS}.
+     */
+    public VMExporter setStoredResources(Set<String> resourceNames) {
+        this.storedResources = resourceNames;
+        return this;
+    }
+
+    private record Export(Path image, Path os, String config, String snapshots) {
+    }
+
     public void exportVM(File exportFile) throws LibvirtException, IOException, ParserConfigurationException, SAXException, TransformerException {
-        Map<String, InputStream> resources = new HashMap<>();
+        Export export = prepareExport();
+
+        // Everything is compressed in parallel as it is added, then written once we're done
+        try (ParallelZipWriter zip = new ParallelZipWriter(exportFile.getAbsoluteFile().getParentFile().toPath())) {
+            zip.addFile(Resource.IMAGE, export.image(), !storedResources.contains(Resource.IMAGE));
+            zip.addFile(Resource.OS, export.os(), !storedResources.contains(Resource.OS));
+            zip.addText(Resource.CONFIG, export.config());
+            zip.addText(Resource.SNAPSHOTS, export.snapshots());
+
+            // Zip all resources
+            System.out.println("Zipping resources into " + exportFile);
+            zip.writeTo(exportFile);
+        }
+        System.out.println("Done!");
+    }
+
+    /**
+     * Exports the VM into a {@link ChunkStore} as the artifacts {@code vms/<exportName>/<resource>}. Only the parts
+     * of the image that aren't already in the store (e.g. from exporting another VM made from the same base) take up
+     * more space. {@link VMCreator#setupFromChunkStore} puts the VM back together.
+     */
+    public void exportVM(ChunkStore store, String exportName) throws LibvirtException, IOException, ParserConfigurationException, SAXException, TransformerException {
+        Export export = prepareExport();
+
+        System.out.println("Storing " + Resource.IMAGE + ": " + store.put(artifactName(exportName, Resource.IMAGE), export.image()));
+        System.out.println("Storing " + Resource.OS + ": " + store.put(artifactName(exportName, Resource.OS), export.os()));
+        store.putText(artifactName(exportName, Resource.CONFIG), export.config());
+        store.putText(artifactName(exportName, Resource.SNAPSHOTS), export.snapshots());
+        System.out.println("Done!");
+    }
+
+    public static String artifactName(String exportName, String resource) {
+        return "vms/" + exportName + "/" + resource;
+    }
 
+    private Export prepareExport() throws LibvirtException, ParserConfigurationException, IOException, SAXException, TransformerException {
         // Export the VM XML configuration
         String xmlString = domain.getXMLDesc(0);
 
@@ -49,13 +94,9 @@ public class VMExporter {
 
         String[] removedValues = sanitizeDomainInformation(xmlConfig, false);
 
-        // Export the VM file
-        String vmPath = removedValues[0];
-        resources.put(Resource.IMAGE, Files.newInputStream(Path.of(vmPath)));
-
-        // Export the OS image
-        String osPath = removedValues[1];
-        resources.put(Resource.OS, Files.newInputStream(Path.of(osPath)));
+        // Find the VM file and OS image
+        Path vmPath = Path.of(removedValues[0]);
+        Path osPath = Path.of(removedValues[1]);
 
         // Export the XML config
         Transformer xmlWriter = TransformerFactory.newInstance().newTransformer();
@@ -66,8 +107,6 @@ public class VMExporter {
         StringWriter xmlOutput = new StringWriter();
         xmlWriter.transform(new DOMSource(xmlConfig), new StreamResult(xmlOutput));
 
-        resources.put(Resource.CONFIG, IOUtils.toInputStream(xmlOutput.toString(), Charset.defaultCharset()));
-
         // Export snapshots
         Document snapshotXMLCollection = DocumentBuilderFactory.newInstance()
             .newDocumentBuilder()
@@ -100,13 +139,7 @@ public class VMExporter {
         StringWriter snapshotXmlOutput = new StringWriter();
         xmlWriter.transform(new DOMSource(snapshotXMLCollection), new StreamResult(snapshotXmlOutput));
 
-        resources.put(Resource.SNAPSHOTS, IOUtils.toInputStream(snapshotXmlOutput.toString(), Charset.defaultCharset()));
-
-        // Zip all resources
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(exportFile));
-        Resource.addToZip(resources, out);
-        out.close();
-        System.out.println("Done!");
+        return new Export(vmPath, osPath, xmlOutput.toString(), snapshotXmlOutput.toString());
     }
 
     private String[] sanitizeDomainInformation(Element domainElement, boolean snapshot) {
@@ -160,6 +193,18 @@ public class VMExporter {
             osSource.setAttribute("file", VMCreator.XML.OS);
         }
 
+        // Find the shared server versions folder, which lives in the storage directory on each host
+        //  VMs made before this was added don't have it, so it's fine if it's missing
+        NodeList filesystems = devices.getElementsByTagName("filesystem");
+        for (int i = 0; i < filesystems.getLength(); i++) {
+            Element filesystem = (Element) filesystems.item(i);
+            Element target = (Element) filesystem.getElementsByTagName("target").item(0);
+            Element source = (Element) filesystem.getElementsByTagName("source").item(0);
+            if (target == null || source == null || !target.getAttribute("dir").equals(VMCreator.SERVER_VERSIONS)) continue;
+
+            source.setAttribute("dir", VMCreator.XML.SERVER_VERSIONS);
+        }
+
         return removedValues;
     }
 }
\ No newline at end of file
@@ -2,9 +2,13 @@ package me.willkroboth.testbukkitvm.vm;
 
 import com.jcraft.jsch.JSchException;
 import me.willkroboth.testbukkitvm.Resource;
+import me.willkroboth.testbukkitvm.metrics.Metrics;
 import me.willkroboth.testbukkitvm.vm.guestagent.FileOpenMode;
 import me.willkroboth.testbukkitvm.vm.guestagent.GuestAgentCommand;
 import me.willkroboth.testbukkitvm.vm.guestagent.GuestExecStatus;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestFileReader;
+import me.willkroboth.testbukkitvm.vm.guestagent.GuestFileWriter;
+import me.willkroboth.testbukkitvm.vm.guestagent.TransferController;
 import org.libvirt.Domain;
 import org.libvirt.DomainInterface;
 import org.libvirt.DomainSnapshot;
@@ -21,19 +25,50 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class VMManager {
+    public enum SnapshotMode {
+        /**
+         * Stored inside the qcow2 image by libvirt, including the memory. Slow to revert.
+         */
+        INTERNAL,
+        /**
+         * Memory stored on a tmpfs and disk changes stored in an overlay, see {@link ExternalSnapshot}. Fast to revert.
+         */
+        EXTERNAL
+    }
+
+    static final long INITIAL_POLL_MILLIS = 10;
+    static final long MAX_AGENT_POLL_MILLIS = 2000;
+    static final long MAX_PROCESS_POLL_MILLIS = 500;
+
     private final Domain domain;
     private final String domainName;
 
     private final File imageFile;
 
+    private final UploadCache uploadCache = new UploadCache();
+    // Set when a data channel transfer is aborted, since bytes from it might still be waiting in the channel
+    //  Reverting a snapshot puts the guest's side of the channel back to how it was, so that clears it
+    private boolean dataChannelBroken = false;
+
+    private StorageProfile storageProfile = StorageProfile.DEFAULT;
+
     public VMManager(Domain domain, File imageFile) throws LibvirtException {
         this.domain = domain;
         this.domainName = domain.getName();
@@ -46,6 +81,26 @@ public class VMManager {
         return this.domain;
     }
 
+    public String domainName() {
+        return this.domainName;
+    }
+
+    public File imageFile() {
+        return this.imageFile;
+    }
+
+    public StorageProfile storageProfile() {
+        return this.storageProfile;
+    }
+
+    /**
+     * @param storageProfile Settings for the overlays made by external snapshots.
+     */
+    public VMManager setStorageProfile(StorageProfile storageProfile) {
+        this.storageProfile = storageProfile;
+        return this;
+    }
+
     public void create() throws LibvirtException {
         domain.create();
     }
@@ -58,11 +113,16 @@ public class VMManager {
         for (String snapshotName : domain.snapshotListNames()) {
             // 0 flags, just delete this snapshot
             domain.snapshotLookupByName(snapshotName).delete(0);
+            Path digestsFile = internalDigestsFile(snapshotName);
+            if (digestsFile != null) Files.deleteIfExists(digestsFile);
         }
         domain.undefine();
 
         // Remove image
-        Files.delete(imageFile.toPath());
+        Files.deleteIfExists(imageFile.toPath());
+        for (ExternalSnapshot snapshot : externalSnapshots()) {
+            snapshot.delete();
+        }
     }
 
     // Snapshots
@@ -70,6 +130,24 @@ public class VMManager {
         return createSnapshot(snapshot.getName(), snapshot.getDescription());
     }
 
+    public void createSnapshot(Snapshot snapshot, SnapshotMode mode) throws LibvirtException, ParserConfigurationException, TransformerException, IOException {
+        switch (mode) {
+            case INTERNAL -> createSnapshot(snapshot);
+            case EXTERNAL -> createExternalSnapshot(snapshot.getName());
+        }
+    }
+
+    public ExternalSnapshot createExternalSnapshot(String name) throws LibvirtException, IOException {
+        System.out.println("Creating external snapshot for " + domainName + ": " + name);
+        ExternalSnapshot snapshot = externalSnapshot(name);
+
+        long startTime = System.nanoTime();
+        snapshot.create(domain, imageFile, storageProfile);
+        Metrics.operation("snapshot-create-external").record(System.nanoTime() - startTime, 0, 0);
+        uploadCache.snapshotCreated(name, snapshot.digestsFile());
+        return snapshot;
+    }
+
     public DomainSnapshot createSnapshot(String name, String description) throws LibvirtException, ParserConfigurationException, TransformerException {
         System.out.println("Creating snapshot for " + domainName + ": " + name);
         // Create xml to configure snapshot
@@ -96,11 +174,51 @@ public class VMManager {
 
         // Create snapshot
 //        System.out.println(xmlResult);
-        return domain.snapshotCreateXML(xmlResult.toString());
+        long startTime = System.nanoTime();
+        DomainSnapshot domainSnapshot = domain.snapshotCreateXML(xmlResult.toString());
+        Metrics.operation("snapshot-create").record(System.nanoTime() - startTime, 0, 0);
+        uploadCache.snapshotCreated(name, internalDigestsFile(name));
+        return domainSnapshot;
+    }
+
+    /**
+     * Restores an external snapshot with this name if there is one, otherwise the internal snapshot.
+     */
+    public void restoreSnapshot(Snapshot snapshot) throws LibvirtException, IOException {
+        restoreSnapshot(snapshot.getName());
+    }
+
+    /**
+     * Restores an external snapshot with this name if there is one, otherwise the internal snapshot.
+     */
+    public void restoreSnapshot(String name) throws LibvirtException, IOException {
+        if (imageFile != null) {
+            ExternalSnapshot external = externalSnapshot(name);
+            if (external.exists()) {
+                restoreSnapshot(external);
+                return;
+            }
+        }
+        restoreSnapshot(domain.snapshotLookupByName(name));
+    }
+
+    /**
+     * @return Where the external snapshot with this name would be stored. It might not exist.
+     */
+    public ExternalSnapshot externalSnapshot(String name) {
+        if (imageFile == null) throw new IllegalStateException("External snapshots need to know where the image is");
+        return ExternalSnapshot.of(domainName, imageFile, name);
     }
 
-    public void restoreSnapshot(Snapshot snapshot) throws LibvirtException {
-        restoreSnapshot(domain.snapshotLookupByName(snapshot.getName()));
+    public void restoreSnapshot(ExternalSnapshot snapshot) throws LibvirtException, IOException {
+        System.out.println("Restoring " + domainName + " to external snapshot " + snapshot.name());
+        long startTime = System.nanoTime();
+        snapshot.revert(domain, imageFile, storageProfile);
+        long time = System.nanoTime() - startTime;
+        Metrics.operation("snapshot-revert-external").record(time, 0, 0);
+        uploadCache.snapshotRestored(snapshot.name(), snapshot.digestsFile());
+        dataChannelBroken = false;
+        System.out.printf("Done! (%.1f ms)%n", time / 1e6);
     }
 
     public void restoreSnapshot(DomainSnapshot snapshot) throws LibvirtException {
@@ -110,8 +228,40 @@ public class VMManager {
         String snapshotName = snapshotDescription.substring(start, end);
 
         System.out.println("Restoring " + domainName + " to snapshot " + snapshotName);
+        long startTime = System.nanoTime();
         domain.revertToSnapshot(snapshot);
-        System.out.println("Done!");
+        long time = System.nanoTime() - startTime;
+        Metrics.operation("snapshot-revert").record(time, 0, 0);
+        uploadCache.snapshotRestored(snapshotName, internalDigestsFile(snapshotName));
+        dataChannelBroken = false;
+        System.out.printf("Done! (%.1f ms)%n", time / 1e6);
+    }
+
+    /**
+     * Clones made by {@link SnapshotFanOut} start from the snapshot without restoring it, so they need to be told which
+     * files it has.
+     */
+    void clonedFrom(ExternalSnapshot snapshot) {
+        uploadCache.snapshotRestored(snapshot.name(), snapshot.digestsFile());
+    }
+
+    // Internal snapshots live inside the image, so their upload digests go next to it
+    private Path internalDigestsFile(String snapshotName) {
+        if (imageFile == null) return null;
+        return imageFile.toPath().resolveSibling(imageFile.getName() + "." + snapshotName + ".uploads");
+    }
+
+    private Collection<ExternalSnapshot> externalSnapshots() throws IOException {
+        Path memoryDirectory = ExternalSnapshot.getMemoryDirectory().resolve(domainName);
+        if (imageFile == null || !Files.isDirectory(memoryDirectory)) return Set.of();
+
+        try (Stream<Path> files = Files.list(memoryDirectory)) {
+            return files
+                .map(file -> file.getFileName().toString())
+                .filter(file -> file.endsWith(".save"))
+                .map(file -> ExternalSnapshot.of(domainName, imageFile, file.substring(0, file.length() - ".save".length())))
+                .toList();
+        }
     }
 
     public boolean isGuestAgentAvailable() throws LibvirtException {
@@ -124,12 +274,16 @@ public class VMManager {
 
     public void waitForGuestAgent() throws LibvirtException {
         System.out.println("Trying to connect to guest agent on " + domain.getName() + "...");
-        boolean connected;
-        do {
-            // This will spam the guest agent until the task is complete (which is why `log` is false :P)
-            //  Not sure if there is a better way
-            connected = isGuestAgentAvailable();
-        } while (!connected);
+        try (DomainMonitor monitor = new DomainMonitor(domain)) {
+            Backoff backoff = new Backoff(INITIAL_POLL_MILLIS, MAX_AGENT_POLL_MILLIS);
+
+            // Libvirt tells us when the agent connects, but we still ping it in case we missed the event or the
+            //  event loop isn't running. This way we only ping when something changed or the backoff runs out.
+            while (!isGuestAgentAvailable()) {
+                monitor.checkRunning("waiting for guest agent");
+                monitor.awaitEvent(backoff.next());
+            }
+        }
         System.out.println("Connected!");
     }
 
@@ -162,21 +316,180 @@ public class VMManager {
         return GuestAgentCommand.executeCommand(path, args, null, null, captureOutput).run(domain, true);
     }
 
+    public GuestExecStatus getProcessStatus(int pid) throws LibvirtException {
+        return GuestAgentCommand.getExecutionStatus(pid).run(domain, false);
+    }
+
     public GuestExecStatus waitForProcessFinish(int pid) throws LibvirtException {
         GuestAgentCommand<GuestExecStatus> getStatus = GuestAgentCommand.getExecutionStatus(pid);
 
-        GuestExecStatus status;
-        do {
-            // This will spam the guest agent until the task is complete (which is why `log` is false :P)
-            //  Not sure if there is a better way
-            status = getStatus.run(domain, false);
-        } while (!status.exited());
+        try (DomainMonitor monitor = new DomainMonitor(domain)) {
+            Backoff backoff = new Backoff(INITIAL_POLL_MILLIS, MAX_PROCESS_POLL_MILLIS);
 
-        return status;
+            // There isn't an event for processes finishing, so we have to poll. Short commands finish
+            //  after the first few quick polls, while long ones don't spam the guest agent.
+            GuestExecStatus status;
+            while (!(status = getStatus.run(domain, false)).exited()) {
+                monitor.checkRunning("waiting for process " + pid);
+                monitor.awaitEvent(backoff.next());
+            }
+            return status;
+        }
     }
 
     // File IO
     public void writeFile(File localFile, Path remoteDestination) throws IOException, LibvirtException {
+        uploadCache.invalidate(remoteDestination);
+
+        if (localFile.isFile()) {
+            // Raw bytes are much faster than going through the guest agent
+            DataChannel dataChannel = dataChannelBroken ? null : DataChannel.find(domain);
+            if (dataChannel != null && writeFileOverChannel(dataChannel, localFile, remoteDestination)) return;
+        }
+
+        if (localFile.isDirectory()) {
+            // Sending many small files one at a time takes a lot of guest agent commands, so try to send them all at once
+            if (writeDirectoryArchive(localFile, remoteDestination)) return;
+
+            System.out.println("Could not unpack archive on " + domainName + ", sending files individually");
+        }
+
+        writeFilesIndividually(localFile, remoteDestination);
+    }
+
+    /**
+     * Uploads a file unless the guest already has a file with the same contents at the destination. This is checked
+     * using the digests of files previously uploaded from this snapshot, or by asking the guest for the digest.
+     *
+     * @return True if the file was uploaded, false if it was skipped.
+     */
+    public boolean writeFileIfChanged(File localFile, Path remoteDestination) throws IOException, LibvirtException {
+        String digest = UploadCache.digest(localFile);
+
+        if (digest.equals(uploadCache.getRemoteDigest(remoteDestination)) ||
+            digest.equals(getRemoteDigest(remoteDestination))) {
+            System.out.println(domainName + " already has " + localFile + " at " + remoteDestination + ", skipping upload");
+            uploadCache.recordUpload(remoteDestination, digest);
+            return false;
+        }
+
+        writeFile(localFile, remoteDestination);
+        uploadCache.recordUpload(remoteDestination, digest);
+        return true;
+    }
+
+    /**
+     * @return The SHA-256 digest of the file on the guest, or null if it could not be read.
+     */
+    public String getRemoteDigest(Path remotePath) throws LibvirtException {
+        GuestExecStatus status = executeCommand("sha256sum", new String[]{remotePath.toString()});
+        if (status.exitCode() != 0 || status.outData() == null) return null;
+
+        // Output looks like `<digest>  <path>`
+        return status.outData().split(" ", 2)[0];
+    }
+
+    /**
+     * Sends a file through the domain's {@link DataChannel} instead of the guest agent.
+     *
+     * @return True if the file was written successfully, false otherwise.
+     */
+    public boolean writeFileOverChannel(DataChannel dataChannel, File localFile, Path remoteDestination) throws IOException, LibvirtException {
+        System.out.println("Sending file over data channel to " + domainName + " " + localFile + " -> " + remoteDestination);
+
+        try (
+            FileChannel input = FileChannel.open(localFile.toPath());
+            SocketChannel socket = dataChannel.connect()
+        ) {
+            long size = input.size();
+            // The script reads exactly as many bytes as we say, so it knows when the file is done
+            ChannelScript script = ChannelScript.start(this, DataChannel.RECEIVE_SCRIPT, remoteDestination.toString(), Long.toString(size));
+            if (script == null) return false;
+
+            long startTime = System.nanoTime();
+            try {
+                DataChannel.send(input, size, socket, script);
+            } catch (IOException exception) {
+                abortTransfer(script, exception);
+                return false;
+            }
+            Metrics.operation("data-channel-send").record(System.nanoTime() - startTime, size, 0);
+
+            GuestExecStatus status = script.waitForFinish();
+            if (status.exitCode() != 0) {
+                System.out.println(status.errData());
+                return false;
+            }
+        }
+
+        System.out.println("Done!");
+        return true;
+    }
+
+    /**
+     * Packs the directory into a tar archive as it is uploaded, then unpacks it on the guest with a single command.
+     *
+     * @return True if the files were unpacked successfully, false otherwise.
+     */
+    public boolean writeDirectoryArchive(File localDirectory, Path remoteDestination) throws IOException, LibvirtException {
+        System.out.println("Sending archive to " + domainName + " " + localDirectory + " -> " + remoteDestination);
+        Path remoteArchive = Path.of("/tmp", "upload-" + UUID.randomUUID() + ".tar");
+
+        try {
+            uploadArchive(localDirectory, remoteArchive);
+        } catch (IOException | LibvirtException | RuntimeException exception) {
+            // Some of the archive might have been written, so don't leave it in /tmp
+            try {
+                executeCommand("rm", new String[]{"-f", remoteArchive.toString()});
+            } catch (LibvirtException | RuntimeException cleanupException) {
+                exception.addSuppressed(cleanupException);
+            }
+            throw exception;
+        }
+
+        // The paths are passed as arguments, so they don't need quoting for the shell
+        GuestExecStatus unpack = executeCommand("/bin/sh", new String[]{"-c",
+            "mkdir -p \"$1\" && tar -xf \"$2\" -C \"$1\"; status=$?; rm -f \"$2\"; exit $status",
+            "sh", remoteDestination.toString(), remoteArchive.toString()
+        });
+        if (unpack.exitCode() != 0) {
+            System.out.println(unpack.errData());
+            return false;
+        }
+
+        System.out.println("Done!");
+        return true;
+    }
+
+    private void uploadArchive(File localDirectory, Path remoteArchive) throws IOException, LibvirtException {
+        PipedInputStream archive = new PipedInputStream(TransferController.INITIAL_CHUNK_BYTES);
+        PipedOutputStream archiveOutput = new PipedOutputStream(archive);
+
+        try (ExecutorService packer = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory())) {
+            // Pack the archive on another thread while it is being sent
+            Future<?> packing = packer.submit(() -> {
+                try (archiveOutput) {
+                    Resource.writeTar(localDirectory, archiveOutput);
+                }
+                return null;
+            });
+
+            try (archive) {
+                int fileHandle = GuestAgentCommand.openFile(remoteArchive, FileOpenMode.WRITE).run(domain, false);
+                new GuestFileWriter(domain, fileHandle, false).write(archive);
+                GuestAgentCommand.closeFile(fileHandle).run(domain, false);
+            }
+
+            packing.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while packing " + localDirectory);
+        } catch (ExecutionException exception) {
+            throw new IOException("Could not pack " + localDirectory, exception.getCause());
+        }
+    }
+
+    public void writeFilesIndividually(File localFile, Path remoteDestination) throws IOException, LibvirtException {
         System.out.println("Sending files to " + domainName + " " + localFile + " -> " + remoteDestination);
 
         Resource.writeDirectory(localFile, remoteDestination, (file, destination) -> {
@@ -184,12 +497,12 @@ public class VMManager {
             //  Not sure if qemu guest agent supports this functionality directly?
             waitForProcessFinish(executeCommandAsync("mkdir -p " + destination.getParent(), false));
 
-            try (FileInputStream input = new FileInputStream(file)) {
+            try (FileChannel input = FileChannel.open(file.toPath())) {
                 int fileHandle = GuestAgentCommand
                     .openFile(destination, FileOpenMode.WRITE)
                     .run(domain, false);
 
-                GuestAgentCommand.writeFile(fileHandle, input.readAllBytes()).run(domain, false);
+                new GuestFileWriter(domain, fileHandle, false).write(input);
                 GuestAgentCommand.closeFile(fileHandle).run(domain, false);
             }
         });
@@ -202,7 +515,7 @@ public class VMManager {
             String fileName = resource.getKey();
             try (InputStream file = resource.getValue()) {
                 int fileHandle = GuestAgentCommand.openFile(Path.of(remoteDestination, fileName), FileOpenMode.WRITE).run(domain, true);
-                GuestAgentCommand.writeFile(fileHandle, file.readAllBytes()).run(domain, false);
+                new GuestFileWriter(domain, fileHandle, false).write(file);
                 GuestAgentCommand.closeFile(fileHandle).run(domain, false);
             }
         }
@@ -210,23 +523,154 @@ public class VMManager {
         System.out.println("Done!");
     }
 
+    /**
+     * Opens each of the given files on the guest. Nothing is read until the returned streams are used, and only one
+     * chunk of each file is held in memory at a time. Each stream holds an open file handle on the guest, so it should
+     * be closed once it is no longer needed.
+     */
     public Map<String, InputStream> readResources(Set<String> resourceNames, String remoteDestination) throws LibvirtException {
         System.out.println("Reading resources from " + domainName + " " + remoteDestination);
 
         Map<String, InputStream> resources = new HashMap<>();
 
-        for (String fileName : resourceNames) {
-            int fileHandle = GuestAgentCommand.openFile(Path.of(remoteDestination, fileName), FileOpenMode.READ).run(domain, true);
-            InputStream bytes = GuestAgentCommand.readFile(fileHandle).run(domain, false);
-            GuestAgentCommand.closeFile(fileHandle).run(domain, false);
-
-            resources.put(fileName, bytes);
+        try {
+            for (String fileName : resourceNames) {
+                resources.put(fileName, openFile(Path.of(remoteDestination, fileName)));
+            }
+        } catch (LibvirtException | RuntimeException exception) {
+            // Don't leave the handles that did open stuck on the guest
+            for (InputStream resource : resources.values()) {
+                try {
+                    resource.close();
+                } catch (IOException closeException) {
+                    exception.addSuppressed(closeException);
+                }
+            }
+            throw exception;
         }
 
         System.out.println("Done!");
         return resources;
     }
 
+    public GuestFileReader openFile(Path remoteSource) throws LibvirtException {
+        int fileHandle = GuestAgentCommand.openFile(remoteSource, FileOpenMode.READ).run(domain, true);
+        return new GuestFileReader(domain, fileHandle, false);
+    }
+
+    public long readFile(Path remoteSource, File localDestination) throws LibvirtException, IOException {
+        System.out.println("Reading file from " + domainName + " " + remoteSource + " -> " + localDestination);
+
+        DataChannel dataChannel = dataChannelBroken ? null : DataChannel.find(domain);
+        if (dataChannel != null) {
+            long bytes = readFileOverChannel(dataChannel, remoteSource, localDestination);
+            if (bytes != -1) return bytes;
+        }
+
+        // Write chunks straight to disk as they arrive
+        try (
+            GuestFileReader input = openFile(remoteSource);
+            FileChannel output = FileChannel.open(localDestination.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+        ) {
+            long bytes = input.transferTo(output);
+            System.out.println("Done! Read " + bytes + " bytes");
+            return bytes;
+        }
+    }
+
+    /**
+     * Reads a file through the domain's {@link DataChannel} instead of the guest agent.
+     *
+     * @return The number of bytes read, or -1 if the file could not be read.
+     */
+    public long readFileOverChannel(DataChannel dataChannel, Path remoteSource, File localDestination) throws IOException, LibvirtException {
+        // We need to know how many bytes to expect
+        GuestExecStatus sizeStatus = executeCommand("stat", new String[]{"-c", "%s", remoteSource.toString()});
+        if (sizeStatus.exitCode() != 0 || sizeStatus.outData() == null) return -1;
+        long size = Long.parseLong(sizeStatus.outData().trim());
+
+        try (
+            SocketChannel socket = dataChannel.connect();
+            FileChannel output = FileChannel.open(localDestination.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+        ) {
+            ChannelScript script = ChannelScript.start(this, DataChannel.SEND_SCRIPT, remoteSource.toString());
+            if (script == null) return -1;
+
+            long startTime = System.nanoTime();
+            try {
+                DataChannel.receive(socket, size, output, script);
+            } catch (IOException exception) {
+                abortTransfer(script, exception);
+                return -1;
+            }
+            Metrics.operation("data-channel-receive").record(System.nanoTime() - startTime, 0, size);
+
+            GuestExecStatus status = script.waitForFinish();
+            if (status.exitCode() != 0) {
+                System.out.println(status.errData());
+                return -1;
+            }
+        }
+
+        System.out.println("Done! Read " + size + " bytes");
+        return size;
+    }
+
+    private void abortTransfer(ChannelScript script, IOException exception) throws LibvirtException {
+        System.out.println("Data channel transfer failed on " + domainName + ", using the guest agent instead: " + exception.getMessage());
+        // Don't use the channel again until the next snapshot revert, since it might still have bytes from this transfer
+        dataChannelBroken = true;
+        script.kill();
+    }
+
+    /**
+     * A {@code receiveFile.sh} or {@code sendFile.sh} process on the guest. The guest agent forgets a process once it
+     * has reported that it exited, so this keeps that status around.
+     */
+    private static final class ChannelScript implements DataChannel.GuestCheck {
+        private final VMManager manager;
+        private final int pid;
+        private GuestExecStatus status;
+
+        private ChannelScript(VMManager manager, int pid) {
+            this.manager = manager;
+            this.pid = pid;
+        }
+
+        /**
+         * @return The started script, or null if it couldn't be started (e.g. an old Base snapshot doesn't have it).
+         */
+        static ChannelScript start(VMManager manager, String script, String... args) {
+            try {
+                return new ChannelScript(manager, manager.executeCommandAsync(script, args, true));
+            } catch (LibvirtException exception) {
+                System.out.println("Could not start " + script + " on " + manager.domainName + ": " + exception.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public boolean failed() throws LibvirtException {
+            if (status == null) {
+                GuestExecStatus current = manager.getProcessStatus(pid);
+                if (current.exited()) status = current;
+            }
+            // A script that exited successfully may still have bytes in the channel for us
+            return status != null && status.exitCode() != 0;
+        }
+
+        GuestExecStatus waitForFinish() throws LibvirtException {
+            return status != null ? status : manager.waitForProcessFinish(pid);
+        }
+
+        void kill() throws LibvirtException {
+            // The scripts exec their last command, so this pid is the process that has the channel open
+            if (status == null) manager.executeCommand("kill", new String[]{Integer.toString(pid)});
+        }
+    }
+
     // SSH connection (TODO: redundant given we can use the guest agent for files and commands?)
     public SSHConnection connect() throws JSchException, LibvirtException {
         String ipAddress = getIP().getHostAddress();
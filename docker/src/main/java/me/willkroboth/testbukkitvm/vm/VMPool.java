@@ -0,0 +1,300 @@
+package me.willkroboth.testbukkitvm.vm;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a few VMs for each server version ready to go, so tests don't have to wait for a snapshot to be restored.
+ * A VM is ready once it has been restored to the pool's snapshot, resumed, and its guest agent is available.
+ * <p>
+ * Tests either {@link #lease(String)} a VM directly or {@link #submit(String, Work)} work to the pool. When a lease is
+ * closed, the VM is restored in the background while other tests keep running.
+ * <p>
+ * Submitted work is queued per version and run by a fixed number of workers. A worker keeps running work for the
+ * version it ran last, but if that version has nothing to do, it steals work from whichever version has the longest
+ * queue and a VM ready for it.
+ */
+public class VMPool implements AutoCloseable {
+    @FunctionalInterface
+    public interface VMFactory {
+        /**
+         * @param version The server version the VM is for.
+         * @param index   Which of the version's VMs this is, so each can get a unique name.
+         */
+        VMManager createVM(String version, int index) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(Lease lease) throws Exception;
+    }
+
+    public class Lease implements AutoCloseable {
+        private final VersionPool pool;
+        private final VMManager manager;
+        private boolean returned = false;
+
+        private Lease(VersionPool pool, VMManager manager) {
+            this.pool = pool;
+            this.manager = manager;
+        }
+
+        public String version() {
+            return pool.version;
+        }
+
+        public VMManager manager() {
+            return manager;
+        }
+
+        /**
+         * Gives the VM back to the pool, which will restore it in the background.
+         */
+        @Override
+        public void close() {
+            if (returned) return;
+            returned = true;
+
+            reset(pool, manager);
+        }
+    }
+
+    private record PendingWork<T>(Work<T> work, CompletableFuture<T> result) {
+    }
+
+    private static class VersionPool {
+        private final String version;
+        private final Deque<VMManager> ready = new ArrayDeque<>();
+        private final Deque<PendingWork<?>> queue = new ArrayDeque<>();
+        private int vms = 0;
+
+        private VersionPool(String version) {
+            this.version = version;
+        }
+    }
+
+    private record Assignment(VersionPool pool, VMManager manager, PendingWork<?> work) {
+    }
+
+    private final VMFactory factory;
+    private final Snapshot readySnapshot;
+    private final int vmsPerVersion;
+
+    // Everything below is guarded by this lock. Workers and leases wait on it for VMs to become ready.
+    private final Object lock = new Object();
+    private final Map<String, VersionPool> versions = new HashMap<>();
+    private boolean closed = false;
+
+    // Creating and restoring VMs mostly waits on libvirt, so virtual threads are fine
+    private final ExecutorService background = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread[] workers;
+
+    /**
+     * @param factory       Creates the VMs for each version.
+     * @param readySnapshot The snapshot VMs are restored to before they are leased.
+     * @param vmsPerVersion How many VMs to keep for each version.
+     * @param workers       How many pieces of submitted work can run at once, across all versions.
+     */
+    public VMPool(VMFactory factory, Snapshot readySnapshot, int vmsPerVersion, int workers) {
+        this.factory = factory;
+        this.readySnapshot = readySnapshot;
+        this.vmsPerVersion = vmsPerVersion;
+
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = Thread.ofVirtual().name("vm-pool-worker-" + i).start(this::runWorker);
+        }
+    }
+
+    // Versions
+    /**
+     * Starts creating VMs for the given version in the background. They can be leased once they are ready.
+     */
+    public void addVersion(String version) {
+        VersionPool pool;
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("VM pool is closed");
+            if (versions.containsKey(version)) return;
+
+            pool = new VersionPool(version);
+            pool.vms = vmsPerVersion;
+            versions.put(version, pool);
+        }
+
+        for (int i = 0; i < vmsPerVersion; i++) {
+            int index = i;
+            background.execute(() -> {
+                VMManager manager;
+                try {
+                    manager = factory.createVM(version, index);
+                } catch (Exception exception) {
+                    System.out.println("Could not create VM #" + index + " for " + version + ": " + exception);
+                    removeVM(pool);
+                    return;
+                }
+                reset(pool, manager);
+            });
+        }
+    }
+
+    // Leasing
+    /**
+     * Waits until a VM for the given version is ready, and takes it out of the pool. The lease should be closed once
+     * the VM is no longer needed.
+     */
+    public Lease lease(String version) throws InterruptedException {
+        synchronized (lock) {
+            VersionPool pool = getPool(version);
+            while (pool.ready.isEmpty()) {
+                if (closed) throw new IllegalStateException("VM pool is closed");
+                if (pool.vms == 0) throw new IllegalStateException("No VMs could be created for " + version);
+                lock.wait();
+            }
+            return new Lease(pool, pool.ready.removeFirst());
+        }
+    }
+
+    /**
+     * Queues work that needs a VM for the given version. The VM is returned to the pool when the work finishes.
+     */
+    public <T> CompletableFuture<T> submit(String version, Work<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("VM pool is closed");
+            getPool(version).queue.addLast(new PendingWork<>(work, result));
+            lock.notifyAll();
+        }
+        return result;
+    }
+
+    private VersionPool getPool(String version) {
+        VersionPool pool = versions.get(version);
+        if (pool == null) throw new IllegalArgumentException("No VMs for " + version + ", use addVersion first");
+        return pool;
+    }
+
+    // Background restoring
+    private void reset(VersionPool pool, VMManager manager) {
+        synchronized (lock) {
+            // Nobody will lease it anymore
+            if (closed) return;
+        }
+
+        background.execute(() -> {
+            try {
+                manager.restoreSnapshot(readySnapshot);
+                manager.domain().resume();
+                manager.waitForGuestAgent();
+            } catch (Exception exception) {
+                // Don't hand out a VM in an unknown state
+                System.out.println("Could not restore VM for " + pool.version + ", removing it from the pool: " + exception);
+                removeVM(pool);
+                return;
+            }
+
+            synchronized (lock) {
+                pool.ready.addLast(manager);
+                lock.notifyAll();
+            }
+        });
+    }
+
+    private void removeVM(VersionPool pool) {
+        synchronized (lock) {
+            pool.vms--;
+            if (pool.vms == 0) {
+                // Nothing will ever run this work
+                for (PendingWork<?> pending : pool.queue) {
+                    pending.result().completeExceptionally(new IllegalStateException("No VMs could be created for " + pool.version));
+                }
+                pool.queue.clear();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    // Workers
+    private void runWorker() {
+        VersionPool preferred = null;
+        while (true) {
+            Assignment assignment;
+            synchronized (lock) {
+                try {
+                    while ((assignment = nextAssignment(preferred)) == null) {
+                        if (closed) return;
+                        lock.wait();
+                    }
+                } catch (InterruptedException exception) {
+                    return;
+                }
+            }
+            preferred = assignment.pool();
+
+            try (Lease lease = new Lease(assignment.pool(), assignment.manager())) {
+                run(assignment.work(), lease);
+            }
+        }
+    }
+
+    private Assignment nextAssignment(VersionPool preferred) {
+        if (closed) return null;
+
+        // Stay on the same version if possible
+        if (preferred != null && !preferred.ready.isEmpty() && !preferred.queue.isEmpty()) {
+            return new Assignment(preferred, preferred.ready.removeFirst(), preferred.queue.removeFirst());
+        }
+
+        // Otherwise, steal from the version with the most work waiting
+        VersionPool busiest = versions.values().stream()
+            .filter(pool -> !pool.ready.isEmpty() && !pool.queue.isEmpty())
+            .max(Comparator.comparingInt(pool -> pool.queue.size()))
+            .orElse(null);
+        if (busiest == null) return null;
+
+        return new Assignment(busiest, busiest.ready.removeFirst(), busiest.queue.removeFirst());
+    }
+
+    private static <T> void run(PendingWork<T> pending, Lease lease) {
+        try {
+            pending.result().complete(pending.work().run(lease));
+        } catch (Throwable exception) {
+            pending.result().completeExceptionally(exception);
+        }
+    }
+
+    /**
+     * Stops running queued work and cancels anything that hasn't started. VMs are left as they are.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+
+            for (VersionPool pool : versions.values()) {
+                for (PendingWork<?> pending : pool.queue) {
+                    pending.result().completeExceptionally(new CancellationException("VM pool closed"));
+                }
+                pool.queue.clear();
+            }
+            lock.notifyAll();
+        }
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException exception) {
+            // The workers will still stop once their current work finishes, we just don't wait for them
+            Thread.currentThread().interrupt();
+        }
+        background.shutdownNow();
+    }
+}
@@ -0,0 +1,73 @@
+package me.willkroboth.testbukkitvm.vm.guestagent;
+
+import java.util.Arrays;
+
+// java.util.Base64 can only decode a String by copying it into a new byte array, and only into a new byte array.
+//  File chunks are big and we decode a lot of them, so this decodes straight from the String into a reused buffer.
+final class Base64Buffer {
+    private Base64Buffer() {
+
+    }
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    /**
+     * Decodes the Base64 string value of the given key in a JSON object, without copying it out of the JSON first.
+     * The key should only appear once in the JSON.
+     *
+     * @return The number of bytes decoded.
+     */
+    static int decodeValue(String json, String key, byte[] buffer) {
+        int keyIndex = json.indexOf('"' + key + '"');
+        if (keyIndex == -1) throw new IllegalArgumentException("Could not find " + key + " in " + json);
+
+        int colon = json.indexOf(':', keyIndex + key.length() + 2);
+        int start = json.indexOf('"', colon) + 1;
+        // Base 64 never contains a quote, even escaped, so the next one ends the string
+        int end = json.indexOf('"', start);
+
+        return decode(json, start, end, buffer);
+    }
+
+    /**
+     * Decodes standard Base64 (with or without padding) into the given buffer. Backslashes are ignored, since
+     * QEMU escapes {@code /} as {@code \/} in JSON strings.
+     *
+     * @return The number of bytes decoded.
+     * @throws IllegalArgumentException If the input is not valid Base64.
+     * @throws ArrayIndexOutOfBoundsException If the buffer is too small.
+     */
+    static int decode(CharSequence base64, int start, int end, byte[] buffer) {
+        while (end > start && base64.charAt(end - 1) == '=') end--;
+
+        int decoded = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = start; i < end; i++) {
+            char character = base64.charAt(i);
+            if (character == '\\') continue;
+
+            int value = character < VALUES.length ? VALUES[character] : -1;
+            if (value == -1) {
+                throw new IllegalArgumentException("Illegal Base64 character '" + character + "' at index " + i);
+            }
+
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                buffer[decoded++] = (byte) (bits >> bitCount);
+            }
+        }
+
+        return decoded;
+    }
+}
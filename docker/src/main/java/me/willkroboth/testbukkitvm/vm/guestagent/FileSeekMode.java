@@ -0,0 +1,22 @@
+package me.willkroboth.testbukkitvm.vm.guestagent;
+
+import com.google.gson.JsonObject;
+
+// https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#enum-QGA-qapi-schema.QGASeek
+public enum FileSeekMode implements CommandProperty {
+    // Same as c's fseek whence: https://en.cppreference.com/w/c/io/fseek
+    SET("set"),
+    CURRENT("cur"),
+    END("end");
+
+    private final String name;
+
+    FileSeekMode(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void addToArguments(JsonObject arguments, String property) {
+        arguments.addProperty(property, name);
+    }
+}
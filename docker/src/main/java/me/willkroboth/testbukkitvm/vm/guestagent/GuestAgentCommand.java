@@ -1,40 +1,26 @@
 package me.willkroboth.testbukkitvm.vm.guestagent;
 
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import org.libvirt.Domain;
 import org.libvirt.Error.ErrorNumber;
 import org.libvirt.LibvirtException;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Collections;
-import java.util.List;
 
 @FunctionalInterface
 public interface GuestAgentCommand<T> {
     T run(Domain domain, boolean log) throws LibvirtException;
 
     // Helper methods
-    private static String base64EncodeBytes(byte[] bytes) {
-        return Base64.getEncoder().encodeToString(bytes);
-    }
-
     private static String base64Encode(String plain) {
-        return plain == null ? null : base64EncodeBytes(plain.getBytes(StandardCharsets.UTF_8));
-    }
-
-    private static byte[] base64DecodeBytes(String base64) {
-        return Base64.getDecoder().decode(base64);
+        return plain == null ? null : Base64.getEncoder().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
     }
 
     private static String base64Decode(String base64) {
-        return base64 == null ? null : new String(base64DecodeBytes(base64), StandardCharsets.UTF_8);
+        return base64 == null ? null : new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8);
     }
 
     // Command builders
@@ -75,23 +61,27 @@ public interface GuestAgentCommand<T> {
     }
 
     // `guest-exec-status` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#qapidoc-225
+    //  This is polled a lot while waiting for processes, so the response is read without building a JsonObject
     static GuestAgentCommand<GuestExecStatus> getExecutionStatus(int pid) {
-        return new SimpleCommand<>("guest-exec-status", returnElement -> {
-            JsonObject response = returnElement.getAsJsonObject();
-
-            boolean exited = response.get("exited").getAsBoolean();
-
+        return new SimpleCommand<>("guest-exec-status", (SimpleCommand.StreamingReturnParser<GuestExecStatus>) (reader, response) -> {
+            boolean exited = false;
+            int exitCode = 0;
             String outData = null;
             String errData = null;
-            if (exited) {
-                JsonElement outDataJson = response.get("out-data");
-                if (outDataJson != null) outData = base64Decode(outDataJson.getAsString());
 
-                JsonElement errDataJson = response.get("err-data");
-                if (errDataJson != null) errData = base64Decode(errDataJson.getAsString());
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "exited" -> exited = reader.nextBoolean();
+                    case "exitcode" -> exitCode = reader.nextInt();
+                    case "out-data" -> outData = base64Decode(reader.nextString());
+                    case "err-data" -> errData = base64Decode(reader.nextString());
+                    default -> reader.skipValue();
+                }
             }
+            reader.endObject();
 
-            return new GuestExecStatus(exited, outData, errData);
+            return new GuestExecStatus(exited, exitCode, outData, errData);
         }
         ).addProperty("pid", pid);
     }
@@ -111,45 +101,52 @@ public interface GuestAgentCommand<T> {
             .addProperty("handle", fileHandle);
     }
 
-    // `guest-file-read` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#object-QGA-qapi-schema.GuestFileRead
-    static GuestAgentCommand<InputStream> readFile(int fileHandle) {
-        // QEMU limits the maximum bytes in one read to 48 MB, but doing that seems to time out Libvirt
-        //  The current value was copied from writeFile since it worked for that purpose
-        // final int MAX_BYTES = 48000000;
-        final int MAX_BYTES = 131072; // 2^17
-        GuestAgentCommand<GuestFileRead> requestRead = readFileChunk(fileHandle, MAX_BYTES);
-
-        return (domain, log) -> {
-            List<ByteArrayInputStream> chunks = new ArrayList<>();
-
-            int reads = 0;
-            GuestFileRead read;
-            do {
-                read = requestRead.run(domain, log);
-                chunks.add(new ByteArrayInputStream(read.bytes()));
-
-                reads++;
-                System.out.println("Read file chunk #" + reads);
-            } while (!read.eof());
-
-            System.out.println("Done!");
-
-            return new SequenceInputStream(Collections.enumeration(chunks));
-        };
+    // `guest-file-seek` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#command-QGA-qapi-schema.guest-file-seek
+    static GuestAgentCommand<Long> seekFile(int fileHandle, long offset, FileSeekMode whence) {
+        return new SimpleCommand<>("guest-file-seek", returnElement -> returnElement.getAsJsonObject().get("position").getAsLong())
+            .addProperty("handle", fileHandle)
+            .addProperty("offset", offset)
+            .addProperty("whence", whence);
     }
 
-    private static GuestAgentCommand<GuestFileRead> readFileChunk(int fileHandle, int readCount) {
-        SimpleCommand<GuestFileRead> command = new SimpleCommand<>("guest-file-read", returnElement -> {
-            JsonObject response = returnElement.getAsJsonObject();
-
-            int count = response.get("count").getAsInt();
+    // `guest-file-read` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#object-QGA-qapi-schema.GuestFileRead
+    //  Whole files should be read using GuestFileReader, which requests chunks from this command as they are needed
+    //  Each chunk is decoded into the same buffer, so the bytes of a GuestFileRead are only valid until the next read
+    static GuestAgentCommand<GuestFileRead> readFileChunk(int fileHandle, int readCount) {
+        // QEMU reads 4 KiB by default
+        return readFileChunk(fileHandle, readCount, new byte[readCount > 0 ? readCount : 4096]);
+    }
 
-            String base64 = response.get("buf-b64").getAsString();
-            byte[] bytes = base64DecodeBytes(base64);
+    /**
+     * @param buffer Where to put the bytes that are read. This must be at least {@code readCount} bytes long.
+     */
+    static GuestAgentCommand<GuestFileRead> readFileChunk(int fileHandle, int readCount, byte[] buffer) {
+        SimpleCommand<GuestFileRead> command = new SimpleCommand<>("guest-file-read", (SimpleCommand.StreamingReturnParser<GuestFileRead>) (reader, response) -> {
+            int count = 0;
+            int decoded = 0;
+            boolean eof = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "count" -> count = reader.nextInt();
+                    case "buf-b64" -> {
+                        // Reading this as a String would copy the biggest part of the response, so we skip it
+                        //  here and decode it straight from the response instead
+                        reader.skipValue();
+                        decoded = Base64Buffer.decodeValue(response, "buf-b64", buffer);
+                    }
+                    case "eof" -> eof = reader.nextBoolean();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-            boolean eof = response.get("eof").getAsBoolean();
+            if (decoded != count) {
+                throw new JsonParseException("guest-file-read said it read " + count + " bytes, but sent " + decoded);
+            }
 
-            return new GuestFileRead(count, bytes, eof);
+            return new GuestFileRead(count, buffer, eof);
         }
         ).addProperty("handle", fileHandle);
 
@@ -159,49 +156,4 @@ public interface GuestAgentCommand<T> {
 
         return command;
     }
-
-    // `guest-file-write` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#qapidoc-49
-    static GuestAgentCommand<Void> writeFile(int fileHandle, byte[] bytes) {
-        // Libvirt limits the maximum string length we can encode,
-        //  so we may need to write the file in multiple calls if it's too big
-        //  https://lists.libvirt.org/archives/list/users@lists.libvirt.org/thread/DG6ULSKQJ5NCO374FCQ77GI6FAX3D2TL/
-        //  The maximum libvirt string length is 4 MiB, but putting MAX_BYTES at 2 MiB seemed to time out the
-        //  guest agent. Putting it at a lower value (found by just messing around) seems more successful.
-        // NOTE: MAX_BYTES should probably at least be a multiple of 4 to ensure when we split a file we don't
-        //  send incomplete bytes. Base 64 turns every 3 bytes into 4 characters.
-//        final int MAX_BYTES = 2097152; // 2^21
-        final int MAX_BYTES = 131072; // 2^17
-        String encoded = base64EncodeBytes(bytes);
-        int length = encoded.length();
-
-        if (length < MAX_BYTES) {
-            // File can go in one write
-            return writeFileSmall(fileHandle, encoded);
-        }
-
-        int subStrings = (int) Math.ceil((double) length / MAX_BYTES);
-        System.out.println("Splitting file into " + subStrings + " segments");
-
-        return (domain, log) -> {
-            for (int i = 0; i < subStrings; i++) {
-                System.out.println("Sending file segment " + (i + 1) + "/" + subStrings);
-                int start = i * MAX_BYTES;
-                int end = Math.min((i + 1) * MAX_BYTES, length);
-
-                // A sub String creates a copy of the underlying byte array, so
-                //  we really only want to create these substrings once necessary
-                String subEncoded = encoded.substring(start, end);
-
-                writeFileSmall(fileHandle, subEncoded).run(domain, log);
-            }
-
-            return null;
-        };
-    }
-
-    private static GuestAgentCommand<Void> writeFileSmall(int fileHandle, String encoded) {
-        return new SimpleCommand<>("guest-file-write", SimpleCommand.EMPTY)
-            .addProperty("handle", fileHandle)
-            .addProperty("buf-b64", encoded);
-    }
 }
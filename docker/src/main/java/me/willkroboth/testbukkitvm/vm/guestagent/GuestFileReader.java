@@ -0,0 +1,178 @@
+package me.willkroboth.testbukkitvm.vm.guestagent;
+
+import me.willkroboth.testbukkitvm.metrics.Metrics;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+// Streams a file from the guest using `guest-file-read` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#object-QGA-qapi-schema.GuestFileRead
+//  The next chunk is only requested once the previous one has been used up, so we never hold more than one chunk
+public class GuestFileReader extends InputStream {
+    // QEMU limits the maximum bytes in one read to 48 MB, but doing that seems to time out Libvirt,
+    //  so the TransferController picks a chunk size that works
+    // If a chunk times out, try reading it again this many times before giving up
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final Domain domain;
+    private final int fileHandle;
+    private final boolean log;
+
+    private final TransferController controller;
+
+    // The command is only created again when the chunk size changes
+    private GuestAgentCommand<GuestFileRead> requestRead = null;
+    private int requestBytes = 0;
+    private byte[] buffer = NO_BYTES;
+    // How many bytes we have read from the guest, so we know where to go back to if a read times out
+    private long offset = 0;
+
+    // The bytes in chunk are reused for every read, so only the first chunkLength bytes are part of the current chunk
+    private byte[] chunk = NO_BYTES;
+    private int chunkLength = 0;
+    private int position = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+    private int reads = 0;
+
+    /**
+     * @param domain     The domain the file is on
+     * @param fileHandle A handle opened with {@link FileOpenMode#READ}. It will be closed when this stream is closed.
+     * @param log        Whether to log each guest agent command
+     */
+    public GuestFileReader(Domain domain, int fileHandle, boolean log) throws LibvirtException {
+        this.domain = domain;
+        this.fileHandle = fileHandle;
+        this.log = log;
+
+        this.controller = TransferController.forDomain(domain.getName());
+        controller.startTransfer();
+    }
+
+    /**
+     * Makes sure there are unread bytes in the current chunk, requesting a new chunk from the guest if necessary.
+     *
+     * @return False if the end of the file was reached, true otherwise.
+     */
+    private boolean fillChunk() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+
+        // Chunks may be empty, so keep going until we get some bytes or the end of the file
+        while (position == chunkLength) {
+            if (eof) return false;
+
+            GuestFileRead read;
+            try {
+                read = readChunk();
+            } catch (LibvirtException exception) {
+                throw new IOException("Could not read file chunk from " + fileHandle, exception);
+            }
+            offset += read.count();
+
+            chunk = read.bytes();
+            chunkLength = read.count();
+            position = 0;
+            eof = read.eof();
+
+            reads++;
+            if (log) System.out.println("Read file chunk #" + reads);
+        }
+        return true;
+    }
+
+    private GuestFileRead readChunk() throws LibvirtException {
+        for (int attempt = 1; ; attempt++) {
+            int chunkBytes = controller.chunkBytes();
+            if (chunkBytes != requestBytes) {
+                if (buffer.length < chunkBytes) buffer = new byte[chunkBytes];
+                requestRead = GuestAgentCommand.readFileChunk(fileHandle, chunkBytes, buffer);
+                requestBytes = chunkBytes;
+            }
+
+            long start = System.nanoTime();
+            try {
+                GuestFileRead read = requestRead.run(domain, log);
+                controller.chunkFinished(chunkBytes, read.count(), System.nanoTime() - start);
+                return read;
+            } catch (LibvirtException exception) {
+                if (!TransferController.isTimeout(exception) || attempt == MAX_ATTEMPTS) throw exception;
+
+                controller.chunkTimedOut();
+                Metrics.operation("guest-file-read").recordRetry();
+                System.out.println("Reading file chunk timed out, trying again");
+
+                // We don't know if the read happened, so go back to where this chunk starts and read it again
+                GuestAgentCommand.seekFile(fileHandle, offset, FileSeekMode.SET).run(domain, log);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillChunk()) return -1;
+
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        if (length == 0) return 0;
+
+        if (!fillChunk()) return -1;
+
+        int count = Math.min(length, chunkLength - position);
+        System.arraycopy(chunk, position, bytes, offset, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunkLength - position;
+    }
+
+    /**
+     * Writes the rest of the file directly into the given channel, one chunk at a time.
+     *
+     * @param target The channel to write to, such as a {@link java.nio.channels.FileChannel}. It is not closed by
+     *               this method.
+     * @return The number of bytes transferred.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+
+        while (fillChunk()) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, position, chunkLength - position);
+            while (buffer.hasRemaining()) {
+                transferred += target.write(buffer);
+            }
+            position = chunkLength;
+        }
+
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        chunk = NO_BYTES;
+        buffer = NO_BYTES;
+        chunkLength = 0;
+        position = 0;
+
+        try {
+            GuestAgentCommand.closeFile(fileHandle).run(domain, log);
+        } catch (LibvirtException exception) {
+            throw new IOException("Could not close file handle " + fileHandle, exception);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package me.willkroboth.testbukkitvm.vm.guestagent;
+
+import me.willkroboth.testbukkitvm.metrics.Metrics;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Streams a file to the guest using `guest-file-write` https://qemu-project.gitlab.io/qemu/interop/qemu-ga-ref.html#qapidoc-49
+//  Files can be much bigger than one command can handle, so they are sent in chunks
+public class GuestFileWriter {
+    // If a chunk times out, try sending it again this many times before giving up
+    private static final int MAX_ATTEMPTS = 3;
+
+    private record Chunk(String prompt, int requestedBytes, int bytes) {
+    }
+
+    private final Domain domain;
+    private final int fileHandle;
+    private final boolean log;
+
+    private final TransferController controller;
+
+    // Only touched by the encoder thread, which handles one chunk at a time
+    //  These grow to fit the biggest chunk we've sent
+    private ByteBuffer rawChunk = ByteBuffer.allocate(0);
+    private final ByteArrayOutputStream prompt = new ByteArrayOutputStream();
+
+    // Every command is the same except for the encoded bytes, so the JSON around them is only created once.
+    //  Base 64 doesn't need escaping inside a JSON string.
+    private final byte[] promptPrefix;
+    private static final byte[] PROMPT_SUFFIX = "\"}}".getBytes(StandardCharsets.US_ASCII);
+
+    public GuestFileWriter(Domain domain, int fileHandle, boolean log) throws LibvirtException {
+        this.domain = domain;
+        this.fileHandle = fileHandle;
+        this.log = log;
+
+        this.controller = TransferController.forDomain(domain.getName());
+
+        this.promptPrefix = ("{\"execute\":\"guest-file-write\",\"arguments\":{\"handle\":" + fileHandle + ",\"buf-b64\":\"")
+            .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public long write(InputStream source) throws LibvirtException, IOException {
+        return write(Channels.newChannel(source));
+    }
+
+    /**
+     * Sends everything in the given channel to the open file handle. Only a couple of chunks are held in memory at
+     * once, so this works for files of any size. While one chunk is being sent, the next chunk is read and encoded on
+     * another thread. The size of each chunk is picked by the domain's {@link TransferController}.
+     *
+     * @param source The channel to read bytes from. It is not closed by this method.
+     * @return The number of bytes written to the guest.
+     */
+    public long write(ReadableByteChannel source) throws LibvirtException, IOException {
+        controller.startTransfer();
+
+        long bytesWritten = 0;
+        int chunks = 0;
+
+        // Using the same thread for every chunk, since some sources (like PipedInputStream) expect that
+        try (ExecutorService encoder = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory())) {
+            int firstChunkBytes = controller.chunkBytes();
+            Future<Chunk> nextChunk = encoder.submit(() -> readChunk(source, firstChunkBytes));
+
+            Chunk chunk;
+            while ((chunk = awaitChunk(nextChunk)) != null) {
+                // Start on the next chunk while we wait for the guest agent
+                int nextChunkBytes = controller.chunkBytes();
+                nextChunk = encoder.submit(() -> readChunk(source, nextChunkBytes));
+
+                chunks++;
+                System.out.println("Sending file segment #" + chunks + " (" + chunk.bytes() + " bytes)");
+                sendChunk(chunk, bytesWritten);
+
+                bytesWritten += chunk.bytes();
+            }
+        }
+
+        return bytesWritten;
+    }
+
+    private void sendChunk(Chunk chunk, long offset) throws LibvirtException {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                SimpleCommand.send(domain, "guest-file-write", chunk.prompt(), SimpleCommand.EMPTY, log);
+                controller.chunkFinished(chunk.requestedBytes(), chunk.bytes(), System.nanoTime() - start);
+                return;
+            } catch (LibvirtException exception) {
+                if (!TransferController.isTimeout(exception) || attempt == MAX_ATTEMPTS) throw exception;
+
+                controller.chunkTimedOut();
+                Metrics.operation("guest-file-write").recordRetry();
+                System.out.println("Sending file segment timed out, trying again");
+
+                // We don't know if the write happened, so go back to where this chunk starts and write it again
+                GuestAgentCommand.seekFile(fileHandle, offset, FileSeekMode.SET).run(domain, log);
+            }
+        }
+    }
+
+    private Chunk readChunk(ReadableByteChannel source, int chunkBytes) throws IOException {
+        if (rawChunk.capacity() < chunkBytes) rawChunk = ByteBuffer.allocate(chunkBytes);
+
+        // Fill the buffer as much as possible, since channels may give us fewer bytes than we asked for
+        rawChunk.clear().limit(chunkBytes);
+        while (rawChunk.hasRemaining()) {
+            if (source.read(rawChunk) == -1) break;
+        }
+        rawChunk.flip();
+
+        int length = rawChunk.limit();
+        if (length == 0) return null;
+
+        // Encode straight into the prompt after the prefix
+        prompt.reset();
+        prompt.write(promptPrefix);
+        try (OutputStream encoded = Base64.getEncoder().wrap(prompt)) {
+            encoded.write(rawChunk.array(), 0, length);
+        }
+        prompt.write(PROMPT_SUFFIX);
+
+        return new Chunk(prompt.toString(StandardCharsets.US_ASCII), chunkBytes, length);
+    }
+
+    private static Chunk awaitChunk(Future<Chunk> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding file chunk");
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException ioException) throw ioException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new IOException(cause);
+        }
+    }
+}
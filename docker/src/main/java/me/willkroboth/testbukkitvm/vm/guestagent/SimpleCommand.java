@@ -3,26 +3,57 @@ package me.willkroboth.testbukkitvm.vm.guestagent;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import me.willkroboth.testbukkitvm.metrics.Metrics;
+import me.willkroboth.testbukkitvm.metrics.OperationStats;
 import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
 
+import java.io.IOException;
+import java.io.StringReader;
+
 public class SimpleCommand<T> implements GuestAgentCommand<T> {
     // Instance definition
-    public static final ReturnParser<Void> EMPTY = returnElement -> null;
+    public static final StreamingReturnParser<Void> EMPTY = (reader, response) -> {
+        reader.skipValue();
+        return null;
+    };
 
     @FunctionalInterface
     public interface ReturnParser<T> {
         T extractReturnResult(JsonElement returnElement);
     }
 
+    /**
+     * Reads the return value straight from the response, instead of building a tree of {@link JsonElement}s first.
+     * This is useful for commands that are sent often or have big responses, like the contents of a file.
+     */
+    @FunctionalInterface
+    public interface StreamingReturnParser<T> {
+        /**
+         * @param reader   A reader positioned at the start of the return value. The parser should read or skip the
+         *                 whole value.
+         * @param response The whole response, for parsers that want to read a large value without copying it.
+         */
+        T readReturnResult(JsonReader reader, String response) throws IOException;
+    }
+
     private final String name;
-    private final ReturnParser<T> returnParser;
+    private final StreamingReturnParser<T> returnParser;
 
     private final JsonObject arguments;
     private boolean argumentsRequired = true;
 
+    // The arguments don't change once the command is built, so we only need to create the prompt once
+    private String prompt = null;
+
     public SimpleCommand(String name, ReturnParser<T> returnParser) {
+        this(name, (reader, response) -> returnParser.extractReturnResult(JsonParser.parseReader(reader)));
+    }
+
+    public SimpleCommand(String name, StreamingReturnParser<T> returnParser) {
         this.name = name;
         this.returnParser = returnParser;
 
@@ -31,19 +62,60 @@ public class SimpleCommand<T> implements GuestAgentCommand<T> {
 
     // https://www.qemu.org/docs/master/interop/qmp-spec.html#issuing-commands
     public T run(Domain domain, boolean log) throws LibvirtException {
-        JsonObject command = new JsonObject();
-        command.addProperty("execute", this.name);
-        command.add("arguments", this.arguments);
+        return send(domain, name, prompt(), returnParser, log);
+    }
+
+    String prompt() {
+        if (prompt == null) {
+            JsonObject command = new JsonObject();
+            command.addProperty("execute", this.name);
+            command.add("arguments", this.arguments);
+
+            prompt = command.toString();
+        }
+        return prompt;
+    }
 
-        String prompt = command.toString();
+    /**
+     * Sends a command that has already been turned into JSON. This lets commands that are sent often or have large
+     * arguments build their prompt without going through a {@link JsonObject}.
+     */
+    public static <T> T send(Domain domain, String name, String prompt, StreamingReturnParser<T> returnParser, boolean log) throws LibvirtException {
         if (log) System.out.println("Sending guest agent command to " + domain.getName() + ": " + prompt);
 
-        // https://libvirt.org/html/libvirt-libvirt-qemu.html#virDomainQemuAgentCommand
-        String response = domain.qemuAgentCommand(prompt, -1 /* Default timeout */, 0);
+        // Every command goes through here, so this is where they get timed
+        OperationStats stats = Metrics.operation(name);
+        long start = System.nanoTime();
+        String response;
+        try {
+            // https://libvirt.org/html/libvirt-libvirt-qemu.html#virDomainQemuAgentCommand
+            response = domain.qemuAgentCommand(prompt, -1 /* Default timeout */, 0);
+        } catch (LibvirtException exception) {
+            stats.recordFailure(System.nanoTime() - start, prompt.length());
+            throw exception;
+        }
+        // Commands and responses are JSON, which libvirt sends as ASCII, so characters are bytes
+        stats.record(System.nanoTime() - start, prompt.length(), response.length());
         if (log) System.out.println("Received " + response);
 
-        JsonElement returnElement = JsonParser.parseString(response).getAsJsonObject().get("return");
-        return this.returnParser.extractReturnResult(returnElement);
+        return parseResponse(name, response, returnParser);
+    }
+
+    static <T> T parseResponse(String name, String response, StreamingReturnParser<T> returnParser) {
+        // Only looking for the "return" value, so we can skip over everything else without parsing it
+        try (JsonReader reader = new JsonReader(new StringReader(response))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("return")) {
+                    return returnParser.readReturnResult(reader, response);
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException exception) {
+            throw new JsonParseException("Could not parse response to " + name + ": " + response, exception);
+        }
+
+        throw new JsonParseException("Response to " + name + " did not have a return value: " + response);
     }
 
     // Build args
@@ -65,6 +137,7 @@ public class SimpleCommand<T> implements GuestAgentCommand<T> {
     public SimpleCommand<T> addProperty(String property, String value) {
         if (propertyGiven(property, value)) {
             this.arguments.addProperty(property, value);
+            this.prompt = null;
         }
 
         return this;
@@ -73,6 +146,7 @@ public class SimpleCommand<T> implements GuestAgentCommand<T> {
     public SimpleCommand<T> addProperty(String property, Number value) {
         if (propertyGiven(property, value)) {
             this.arguments.addProperty(property, value);
+            this.prompt = null;
         }
 
         return this;
@@ -81,13 +155,17 @@ public class SimpleCommand<T> implements GuestAgentCommand<T> {
     public SimpleCommand<T> addProperty(String property, CommandProperty value) {
         if (propertyGiven(property, value)) {
             value.addToArguments(this.arguments, property);
+            this.prompt = null;
         }
 
         return this;
     }
 
     public SimpleCommand<T> addPropertyIfNotDefault(String property, boolean value, boolean defaultValue) {
-        if (value != defaultValue) this.arguments.addProperty(property, value);
+        if (value != defaultValue) {
+            this.arguments.addProperty(property, value);
+            this.prompt = null;
+        }
 
         return this;
     }
@@ -100,6 +178,7 @@ public class SimpleCommand<T> implements GuestAgentCommand<T> {
             }
 
             this.arguments.add(property, array);
+            this.prompt = null;
         }
 
         return this;
@@ -0,0 +1,100 @@
+package me.willkroboth.testbukkitvm.vm.guestagent;
+
+import org.libvirt.Error.ErrorNumber;
+import org.libvirt.LibvirtException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks how many bytes to send or request in each `guest-file-write`/`guest-file-read`. Bigger chunks mean fewer
+ * commands, but chunks that are too big take so long that libvirt times out, and how big is too big depends on how
+ * busy the guest and host are.
+ * <p>
+ * This works like TCP congestion control (additive increase, multiplicative decrease): while chunks finish quickly,
+ * the chunk size slowly grows. When a chunk is slow or times out, the size is cut in half. The size with the best
+ * throughput is remembered for each domain, and the next transfer starts from there.
+ */
+public class TransferController {
+    // The maximum libvirt string length is 4 MiB https://lists.libvirt.org/archives/list/users@lists.libvirt.org/thread/DG6ULSKQJ5NCO374FCQ77GI6FAX3D2TL/
+    //  Base 64 turns every 3 bytes into 4 characters, so this many bytes is 3 MiB once encoded, leaving plenty of
+    //  room for the rest of the command.
+    public static final int MAX_CHUNK_BYTES = 2359296;
+    public static final int MIN_CHUNK_BYTES = 16384; // 2^14
+    // This used to be the fixed chunk size, which was found by just messing around
+    public static final int INITIAL_CHUNK_BYTES = 98304; // 3 * 2^15
+
+    private static final int CHUNK_STEP_BYTES = 32768; // 2^15
+    // Libvirt's default agent timeout is 5 seconds, so we want to stay well below that
+    private static final long TARGET_CHUNK_NANOS = 1_000_000_000;
+
+    private static final Map<String, TransferController> controllers = new ConcurrentHashMap<>();
+
+    private int chunkBytes = INITIAL_CHUNK_BYTES;
+
+    private int bestChunkBytes = INITIAL_CHUNK_BYTES;
+    private double bestBytesPerNano = 0;
+
+    private TransferController() {
+
+    }
+
+    /**
+     * @param domainName The domain transfers are happening with.
+     * @return The controller for that domain, which remembers the best chunk size from previous transfers.
+     */
+    public static TransferController forDomain(String domainName) {
+        return controllers.computeIfAbsent(domainName, name -> new TransferController());
+    }
+
+    /**
+     * Called at the start of a transfer, to pick up from the best chunk size found so far.
+     */
+    public synchronized void startTransfer() {
+        chunkBytes = bestChunkBytes;
+    }
+
+    public synchronized int chunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * @param requestedBytes The chunk size this chunk was read with, which might not be the current size if the next
+     *                       chunk was prepared while an earlier one was still being sent.
+     * @param bytes          The number of bytes in the chunk.
+     * @param elapsedNanos   How long the command took.
+     */
+    public synchronized void chunkFinished(int requestedBytes, int bytes, long elapsedNanos) {
+        // The partial chunk at the end of a file doesn't tell us much
+        if (bytes < requestedBytes) return;
+
+        double bytesPerNano = (double) bytes / Math.max(elapsedNanos, 1);
+        if (bytesPerNano > bestBytesPerNano) {
+            bestBytesPerNano = bytesPerNano;
+            bestChunkBytes = bytes;
+        }
+
+        if (elapsedNanos < TARGET_CHUNK_NANOS) {
+            chunkBytes = Math.min(chunkBytes + CHUNK_STEP_BYTES, MAX_CHUNK_BYTES);
+        } else {
+            chunkBytes = Math.max(chunkBytes / 2, MIN_CHUNK_BYTES);
+        }
+    }
+
+    public synchronized void chunkTimedOut() {
+        chunkBytes = Math.max(chunkBytes / 2, MIN_CHUNK_BYTES);
+
+        // The best size might not work anymore, so don't go back to it if it's too big
+        bestChunkBytes = Math.min(bestChunkBytes, chunkBytes);
+        bestBytesPerNano = 0;
+    }
+
+    /**
+     * @return True if the exception means the command took too long, so it might work with a smaller chunk.
+     */
+    public static boolean isTimeout(LibvirtException exception) {
+        ErrorNumber errorNumber = exception.getError().getCode();
+        return errorNumber == ErrorNumber.VIR_ERR_OPERATION_TIMEOUT ||
+            errorNumber == ErrorNumber.VIR_ERR_AGENT_UNRESPONSIVE;
+    }
+}